@@ -9,9 +9,17 @@ repositories {
     mavenCentral()
 }
 
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
 dependencies {
     testImplementation("org.junit.jupiter:junit-jupiter-api:5.8.1")
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.8.1")
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
 }
 
 val moduleName = "org.glavo.jmod.fallback"
@@ -51,4 +59,47 @@ tasks.jar {
 
 tasks.test {
     useJUnitPlatform()
+}
+
+// The benchmarks are on the class path, so the internal packages are exported to the unnamed module
+val unnamedModuleExports = listOf("--add-modules", "jdk.jlink") +
+        needExports.flatMap { listOf("--add-exports", "$it=ALL-UNNAMED") }
+
+tasks.named<JavaCompile>(jmh.compileJavaTaskName) {
+    sourceCompatibility = "11"
+    targetCompatibility = "11"
+    options.compilerArgs.addAll(unnamedModuleExports)
+}
+
+// The benchmarks are only run by the jmh and macroBenchmark tasks, but check compiles them
+// so that they are kept up to date with the main code
+tasks.check {
+    dependsOn(jmh.classesTaskName)
+}
+
+val benchmarkJvmArgs = unnamedModuleExports + needOpens.flatMap { listOf("--add-opens", "$it=ALL-UNNAMED") }
+
+fun benchmarkArgs(property: String): List<String> =
+    (findProperty(property) as String?)?.split(" ")?.filter { it.isNotEmpty() } ?: listOf()
+
+// Runs the JMH benchmarks with the JDK running Gradle as the runtime path,
+// arguments are passed to JMH with -PjmhArgs, for example -PjmhArgs="MessageDigestBenchmark -f 1"
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks."
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    jvmArgs(benchmarkJvmArgs)
+    args(benchmarkArgs("jmhArgs"))
+}
+
+// Runs the end-to-end benchmark on a synthetic runtime generated with the JDK running Gradle,
+// arguments are passed with -PmacroBenchmarkArgs, for example -PmacroBenchmarkArgs="--modules 50 --jobs 4"
+tasks.register<JavaExec>("macroBenchmark") {
+    group = "verification"
+    description = "Runs the end-to-end benchmark of the reduce, restore and jlink modes."
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.glavo.jmod.fallback.benchmark.macro.MacroBenchmark")
+    jvmArgs(benchmarkJvmArgs)
+    args(benchmarkArgs("macroBenchmarkArgs"))
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package org.glavo.jmod.fallback.benchmark;
+
+import org.glavo.jmod.fallback.JmodJob;
+import org.glavo.jmod.fallback.JobResult;
+import org.glavo.jmod.fallback.Main;
+import org.glavo.jmod.fallback.util.JmodUtils;
+import org.glavo.jmod.fallback.util.RawZipFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * The runtime path and the fallback Jmod files used by the benchmarks.
+ * <p>
+ * The runtime path is the JDK running the benchmarks, or the one specified by the system property
+ * {@code org.glavo.jmod.fallback.benchmark.runtime}. It must contain the {@code jmods} folder.
+ * Its Jmod files are reduced once per JVM into a temporary folder, which is deleted when the JVM exits,
+ * so the benchmarks do not need anything but the local JDK.
+ */
+final class BenchmarkRuntime {
+    static final Path RUNTIME_PATH = Paths.get(System.getProperty("org.glavo.jmod.fallback.benchmark.runtime", System.getProperty("java.home")))
+            .toAbsolutePath().normalize();
+    static final Path JIMAGE_PATH = RUNTIME_PATH.resolve("lib").resolve("modules");
+    static final Path JMODS_DIR = RUNTIME_PATH.resolve("jmods");
+
+    private static Path tempDir;
+    private static final Map<String, Path> reducedFiles = new HashMap<>();
+
+    private BenchmarkRuntime() {
+    }
+
+    /**
+     * @return a temporary folder that is deleted when the JVM exits
+     */
+    static synchronized Path tempDir() throws IOException {
+        if (tempDir == null) {
+            Path dir = Files.createTempDirectory("fallback-jmod-benchmark");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try (Stream<Path> stream = Files.walk(dir)) {
+                    stream.sorted(Comparator.reverseOrder()).forEach(path -> {
+                        try {
+                            Files.delete(path);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (IOException | UncheckedIOException ignored) {
+                }
+            }));
+            tempDir = dir;
+        }
+        return tempDir;
+    }
+
+    static Path jmod(String moduleName) {
+        Path jmod = JMODS_DIR.resolve(moduleName + ".jmod");
+        if (!Files.isRegularFile(jmod)) {
+            throw new IllegalStateException("Jmod file not found: " + jmod);
+        }
+        return jmod;
+    }
+
+    /**
+     * @return the fallback Jmod file of the module, reduced with the given version of {@code fallback.list}
+     */
+    static synchronized Path reduced(String moduleName, int fallbackListVersion) throws IOException {
+        String key = moduleName + "@" + fallbackListVersion;
+        Path res = reducedFiles.get(key);
+        if (res == null) {
+            Path outputDir = tempDir().resolve("reduced-v" + fallbackListVersion);
+            JobResult result = JmodJob.reduce()
+                    .runtimePath(RUNTIME_PATH)
+                    .output(outputDir)
+                    .addFile(jmod(moduleName))
+                    .fallbackListVersion(fallbackListVersion)
+                    .build()
+                    .run();
+            if (!result.isSuccessful()) {
+                throw new IOException("Failed to reduce " + moduleName, result.getModules().get(0).getFailure());
+            }
+
+            res = outputDir.resolve(moduleName + ".jmod");
+            reducedFiles.put(key, res);
+        }
+        return res;
+    }
+
+    /**
+     * @return the content of {@code fallback.list} in the fallback Jmod file
+     */
+    static byte[] readFallbackList(Path jmod) throws IOException {
+        try (RawZipFile file = JmodUtils.openRaw(jmod)) {
+            RawZipFile.Entry entry = file.getEntry(JmodUtils.SECTION_CLASSES + "/" + Main.FALLBACK_LIST_FILE_NAME);
+            if (entry == null) {
+                throw new IOException(jmod + " is not a fallback Jmod file");
+            }
+            return file.readAllBytes(entry);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.glavo.jmod.fallback.benchmark;
+
+import jdk.tools.jlink.internal.ResourcePoolManager;
+import jdk.tools.jlink.plugin.ResourcePool;
+import jdk.tools.jlink.plugin.ResourcePoolEntry;
+import org.glavo.jmod.fallback.Main;
+import org.glavo.jmod.fallback.Options;
+import org.glavo.jmod.fallback.jlink.FallbackJmodPlugin;
+import org.glavo.jmod.fallback.util.DaemonThreadFactory;
+import org.glavo.jmod.fallback.util.DigestCache;
+import org.glavo.jmod.fallback.util.ImageReaderPool;
+import org.glavo.jmod.fallback.util.InternalAccess;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FallbackJmodPlugin#transform} of a resource pool that contains the {@code fallback.list} of
+ * {@code java.base} and {@code java.xml}, with or without writing the content of the added entries,
+ * which reads the files from the runtime path and verifies their hash values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FallbackJmodPluginBenchmark {
+    private static final String[] MODULES = {"java.base", "java.xml"};
+
+    @Param({"1", "4"})
+    public int jobs;
+
+    private ResourcePool pool;
+    private ImageReaderPool images;
+    private ExecutorService executor;
+    private FallbackJmodPlugin plugin;
+
+    @Setup
+    public void setup() throws IOException {
+        ResourcePoolManager manager = new ResourcePoolManager();
+        for (String moduleName : MODULES) {
+            byte[] fallbackList = BenchmarkRuntime.readFallbackList(BenchmarkRuntime.reduced(moduleName, 1));
+            manager.add(ResourcePoolEntry.create("/" + moduleName + "/" + Main.FALLBACK_LIST_FILE_NAME, fallbackList));
+        }
+        pool = manager.resourcePool();
+
+        Options options = new Options();
+        options.runtimePath = BenchmarkRuntime.RUNTIME_PATH;
+        options.jimagePath = BenchmarkRuntime.JIMAGE_PATH;
+        options.jobs = jobs;
+
+        images = new ImageReaderPool(BenchmarkRuntime.JIMAGE_PATH);
+        executor = jobs > 1 ? Executors.newFixedThreadPool(jobs, new DaemonThreadFactory("benchmark-jlink")) : null;
+        plugin = InternalAccess.getJlinkPluginFactory().create(options, images, DigestCache.disabled(), executor);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        images.close();
+    }
+
+    @Benchmark
+    public ResourcePool transform() {
+        return plugin.transform(pool, new ResourcePoolManager().resourcePoolBuilder());
+    }
+
+    @Benchmark
+    public long transformAndWrite() {
+        ResourcePool res = plugin.transform(pool, new ResourcePoolManager().resourcePoolBuilder());
+        CountingOutputStream output = new CountingOutputStream();
+        res.entries().forEach(entry -> entry.write(output));
+        return output.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
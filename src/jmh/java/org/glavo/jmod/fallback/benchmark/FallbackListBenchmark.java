@@ -0,0 +1,50 @@
+package org.glavo.jmod.fallback.benchmark;
+
+import org.glavo.jmod.fallback.util.FallbackList;
+import org.glavo.jmod.fallback.util.FallbackUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FallbackUtils#readFallbackList} of the {@code fallback.list} of {@code java.base}, the largest module of the JDK.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FallbackListBenchmark {
+    @Param({"1", "2"})
+    public int version;
+
+    private byte[] fallbackList;
+
+    @Setup
+    public void setup() throws IOException {
+        fallbackList = BenchmarkRuntime.readFallbackList(BenchmarkRuntime.reduced("java.base", version));
+    }
+
+    @Benchmark
+    public FallbackList read() throws IOException {
+        return FallbackUtils.readFallbackList(new ByteArrayInputStream(fallbackList));
+    }
+
+    /**
+     * Reads the list and looks up every file, as the jlink plugin and the module reader do.
+     */
+    @Benchmark
+    public int readAndLookup() throws IOException {
+        FallbackList list = FallbackUtils.readFallbackList(new ByteArrayInputStream(fallbackList));
+        int res = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (list.indexOf(list.getPath(i)) >= 0) {
+                res++;
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,52 @@
+package org.glavo.jmod.fallback.benchmark;
+
+import org.glavo.jmod.fallback.util.DigestAlgorithm;
+import org.glavo.jmod.fallback.util.MessageDigestUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MessageDigestUtils#hash} of streams and files, which is done for every candidate file when reducing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageDigestBenchmark {
+    @Param({"1024", "65536", "4194304"})
+    public int size;
+
+    @Param({"SHA-256", "SHA-512/256", "Murmur3-128"})
+    public String algorithm;
+
+    private DigestAlgorithm digestAlgorithm;
+    private byte[] data;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        digestAlgorithm = DigestAlgorithm.of(algorithm);
+        data = new byte[size];
+        new Random(0).nextBytes(data);
+        file = Files.createTempFile(BenchmarkRuntime.tempDir(), "digest", ".bin");
+        Files.write(file, data);
+    }
+
+    @Benchmark
+    public String hashStream() throws IOException {
+        return MessageDigestUtils.hash(digestAlgorithm, new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public String hashFile() throws IOException {
+        return MessageDigestUtils.hash(digestAlgorithm, file);
+    }
+}
@@ -0,0 +1,77 @@
+package org.glavo.jmod.fallback.benchmark;
+
+import org.glavo.jmod.fallback.module.FallbackJModModuleFinder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.module.ModuleReader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The reader of the fallback Jmod file of {@code java.base} shared by several threads, as it is during jlink.
+ * Each call looks up a random file of the module, which is in the Jmod file or recorded in {@code fallback.list}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ModuleReaderBenchmark {
+    private FallbackJModModuleFinder finder;
+    private ModuleReader reader;
+    private String[] names;
+
+    @Setup
+    public void setup() throws IOException {
+        finder = FallbackJModModuleFinder.of(
+                BenchmarkRuntime.RUNTIME_PATH, List.of(BenchmarkRuntime.reduced("java.base", 1)));
+        reader = finder.find("java.base").orElseThrow().open();
+        try (Stream<String> stream = reader.list()) {
+            names = stream.toArray(String[]::new);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try {
+            reader.close();
+        } finally {
+            finder.close();
+        }
+    }
+
+    private String randomName() {
+        return names[ThreadLocalRandom.current().nextInt(names.length)];
+    }
+
+    @Benchmark
+    public Optional<URI> find() throws IOException {
+        return reader.find(randomName());
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        ByteBuffer buffer = reader.read(randomName()).orElseThrow();
+        try {
+            return buffer.remaining();
+        } finally {
+            reader.release(buffer);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long list() throws IOException {
+        try (Stream<String> stream = reader.list()) {
+            return stream.count();
+        }
+    }
+}
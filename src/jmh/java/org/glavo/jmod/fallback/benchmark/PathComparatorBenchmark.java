@@ -0,0 +1,61 @@
+package org.glavo.jmod.fallback.benchmark;
+
+import org.glavo.jmod.fallback.util.FallbackList;
+import org.glavo.jmod.fallback.util.FallbackUtils;
+import org.glavo.jmod.fallback.util.PathArrayComparator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting the paths of the files of {@code java.base} with {@link PathArrayComparator#PATH_COMPARATOR},
+ * which splits the paths for every comparison, and with {@link PathArrayComparator#STRING_COMPARATOR}, which does not.
+ * Each invocation sorts a copy of the same shuffled array.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PathComparatorBenchmark {
+    private Path[] paths;
+    private String[] names;
+
+    @Setup
+    public void setup() throws IOException {
+        FallbackList list = FallbackUtils.readFallbackList(new ByteArrayInputStream(
+                BenchmarkRuntime.readFallbackList(BenchmarkRuntime.reduced("java.base", 1))));
+
+        List<String> res = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            res.add(list.getPath(i));
+        }
+        Collections.shuffle(res, new Random(0));
+
+        names = res.toArray(new String[0]);
+        paths = new Path[names.length];
+        for (int i = 0; i < names.length; i++) {
+            paths[i] = Paths.get(names[i]);
+        }
+    }
+
+    @Benchmark
+    public Path[] sortPaths() {
+        Path[] res = paths.clone();
+        Arrays.sort(res, PathArrayComparator.PATH_COMPARATOR);
+        return res;
+    }
+
+    @Benchmark
+    public String[] sortStrings() {
+        String[] res = names.clone();
+        Arrays.sort(res, PathArrayComparator.STRING_COMPARATOR);
+        return res;
+    }
+}
@@ -0,0 +1,107 @@
+package org.glavo.jmod.fallback.benchmark;
+
+import jdk.internal.jimage.BasicImageReader;
+import org.glavo.jmod.fallback.util.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ReduceFileVisitor} over the entries of a synthetic Jmod file, as the reduce mode does.
+ * <p>
+ * The Jmod file contains the first {@code count} classes of {@code java.base} in the runtime path.
+ * One in four of them is changed without changing its size, so that the CRC-32 prefilter skips it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReduceFileVisitorBenchmark {
+    private static final String MODULE_NAME = "java.base";
+    private static final long DOS_TIME = RawZipOutputStream.javaToDosTime(0);
+
+    @Param({"1000", "5000"})
+    public int count;
+
+    @Param({"1", "4"})
+    public int hashThreads;
+
+    private Path jmod;
+    private ImageReaderPool images;
+    private ExecutorService hashExecutor;
+
+    @Setup
+    public void setup() throws IOException {
+        images = new ImageReaderPool(BenchmarkRuntime.JIMAGE_PATH);
+        hashExecutor = hashThreads > 1 ? Executors.newFixedThreadPool(hashThreads, new DaemonThreadFactory("benchmark-hash")) : null;
+
+        jmod = Files.createTempFile(BenchmarkRuntime.tempDir(), "synthetic", ".jmod");
+        BasicImageReader image = images.get();
+        String prefix = "/" + MODULE_NAME + "/";
+        List<String> names = new ArrayList<>();
+        for (String name : image.getEntryNames()) {
+            if (name.startsWith(prefix) && name.endsWith(".class") && !name.endsWith("/module-info.class")) {
+                names.add(name);
+            }
+        }
+        names.sort(null);
+        if (names.size() < count) {
+            throw new IllegalStateException("The runtime path only contains " + names.size() + " classes of " + MODULE_NAME);
+        }
+
+        try (BufferedOutputStream output = new BufferedOutputStream(Files.newOutputStream(jmod))) {
+            JmodUtils.writeMagicNumber(output);
+            try (RawZipOutputStream zipOutput = new RawZipOutputStream(output)) {
+                for (int i = 0; i < count; i++) {
+                    String name = names.get(i);
+                    byte[] content = image.getResource(name);
+                    if (i % 4 == 3) {
+                        content = Arrays.copyOf(content, content.length);
+                        content[content.length - 1] ^= 1;
+                    }
+                    zipOutput.writeEntry(JmodUtils.SECTION_CLASSES + "/" + name.substring(prefix.length()), content, DOS_TIME);
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (hashExecutor != null) {
+            hashExecutor.shutdownNow();
+        }
+        images.close();
+    }
+
+    @Benchmark
+    public int visit() throws IOException {
+        try (RawZipFile input = JmodUtils.openRaw(jmod);
+             ReduceFileVisitor visitor = new ReduceFileVisitor(MODULE_NAME, BenchmarkRuntime.RUNTIME_PATH, images,
+                     DigestAlgorithm.SHA_256, DigestCache.disabled(), hashExecutor)) {
+            for (RawZipFile.Entry entry : input.entries()) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                visitor.visitEntry(entry.getName(), entry.getSize(), entry.getCrc(), () -> {
+                    try (InputStream i = input.getInputStream(entry)) {
+                        return MessageDigestUtils.hash(DigestAlgorithm.SHA_256, i);
+                    }
+                });
+            }
+            visitor.finish();
+            return visitor.getRecordedHash().size();
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package org.glavo.jmod.fallback.benchmark.macro;
+
+import org.glavo.jmod.fallback.JobResult;
+import org.glavo.jmod.fallback.JmodJob;
+import org.glavo.jmod.fallback.ModuleResult;
+import org.glavo.jmod.fallback.util.JmodUtils;
+import org.glavo.jmod.fallback.util.RawZipFile;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The end-to-end benchmark of the reduce, restore and jlink modes on a {@link SyntheticRuntime}.
+ * <p>
+ * Each mode runs in a new process, like the command line tool, and its wall time, CPU time, peak resident set size,
+ * bytes read and written and the size of its output are measured. For comparison, the restored Jmod files are
+ * created again with the stock {@code jmod} tool, and linked into a runtime image with the stock {@code jlink} tool.
+ * The median of the iterations is reported, and all the samples can be written into a CSV file.
+ */
+public final class MacroBenchmark {
+    private static final String REDUCE = "reduce";
+    private static final String RESTORE = "restore";
+    private static final String JLINK = "jlink";
+    private static final String STOCK_JMOD = "stock jmod";
+    private static final String STOCK_JLINK = "stock jlink";
+
+    private static final String MODULE_INFO = JmodUtils.SECTION_CLASSES + "/module-info.class";
+
+    private static final double MIB = 1024.0 * 1024.0;
+
+    private final SyntheticRuntime.Config config = new SyntheticRuntime.Config();
+    private Path workDir = Paths.get("build", "macro-benchmark");
+    private int iterations = 3;
+    private int warmupIterations = 1;
+    private int jobs = 1;
+    private Path csvFile;
+
+    private final Map<String, List<Sample>> samples = new LinkedHashMap<>();
+
+    private MacroBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        MacroBenchmark benchmark = new MacroBenchmark();
+        try {
+            if (!benchmark.handleOptions(args)) {
+                showHelpMessage(System.out);
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            showHelpMessage(System.err);
+            System.exit(1);
+        }
+        benchmark.run();
+    }
+
+    private static void showHelpMessage(PrintStream out) {
+        out.println("Usage: MacroBenchmark <options>");
+        out.println("Options:");
+        out.println("  --work <dir>              The folder of the synthetic runtime and the outputs, build/macro-benchmark by default");
+        out.println("  --modules <n>             The number of synthetic modules, 20 by default");
+        out.println("  --classes <n>             The number of classes of each synthetic module, 200 by default");
+        out.println("  --methods <n>             The number of methods of each class, 8 by default");
+        out.println("  --native-libs <n>         The number of native libraries, 3 by default");
+        out.println("  --native-lib-size <MiB>   The size of each native library, 16 by default");
+        out.println("  --seed <n>                The seed of the generated files, 0 by default");
+        out.println("  --iterations <n>          The number of measured iterations, 3 by default");
+        out.println("  --warmup <n>              The number of iterations run before them, 1 by default");
+        out.println("  -j, --jobs <n>            The number of jobs of the reduce, restore and jlink modes, 1 by default");
+        out.println("  --csv <file>              Writes all the samples into the CSV file");
+    }
+
+    /**
+     * @return {@code false} if the help message is requested
+     */
+    private boolean handleOptions(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-?") || arg.equals("-help") || arg.equals("--help")) {
+                return false;
+            }
+            if (i == args.length - 1) {
+                throw new IllegalArgumentException(arg.startsWith("-") ? "Missing argument for " + arg : "Unknown option: " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--work":
+                    workDir = Paths.get(value);
+                    break;
+                case "--modules":
+                    config.modules = parsePositiveInt(arg, value);
+                    break;
+                case "--classes":
+                    config.classes = parsePositiveInt(arg, value);
+                    break;
+                case "--methods":
+                    config.methods = parsePositiveInt(arg, value);
+                    break;
+                case "--native-libs":
+                    config.nativeLibs = parseInt(arg, value, 0);
+                    break;
+                case "--native-lib-size":
+                    config.nativeLibSize = parsePositiveInt(arg, value) * 1024L * 1024L;
+                    break;
+                case "--seed":
+                    try {
+                        config.seed = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid value for " + arg + ": " + value);
+                    }
+                    break;
+                case "--iterations":
+                    iterations = parsePositiveInt(arg, value);
+                    break;
+                case "--warmup":
+                    warmupIterations = parseInt(arg, value, 0);
+                    break;
+                case "-j":
+                case "--jobs":
+                    jobs = parsePositiveInt(arg, value);
+                    break;
+                case "--csv":
+                    csvFile = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        workDir = workDir.toAbsolutePath().normalize();
+        return true;
+    }
+
+    private static int parsePositiveInt(String option, String value) {
+        return parseInt(option, value, 1);
+    }
+
+    private static int parseInt(String option, String value, int min) {
+        int res;
+        try {
+            res = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            res = Integer.MIN_VALUE;
+        }
+        if (res < min) {
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+        return res;
+    }
+
+    private void run() throws IOException, InterruptedException {
+        SyntheticRuntime runtime = SyntheticRuntime.open(workDir.resolve("synthetic"), config, System.out);
+        System.out.printf("Synthetic runtime: %d modules, %.1f MiB of Jmod files, %.1f MiB of runtime image%n",
+                runtime.moduleNames.size(),
+                SyntheticRuntime.sizeOf(runtime.jmodsDir) / MIB,
+                SyntheticRuntime.sizeOf(runtime.runtimePath) / MIB);
+
+        List<Path> jmodFiles = listJmodFiles(runtime.jmodsDir);
+        verifyDigestCache(runtime, jmodFiles, workDir.resolve("digest-cache-check"));
+
+        Path outputDir = workDir.resolve("output");
+        Path logsDir = workDir.resolve("logs");
+        Path extractedDir = workDir.resolve("extracted");
+        deleteRecursively(logsDir);
+        deleteRecursively(extractedDir);
+        Files.createDirectories(logsDir);
+
+        for (int i = -warmupIterations; i < iterations; i++) {
+            boolean measured = i >= 0;
+            System.out.println(measured
+                    ? "Iteration " + (i + 1) + "/" + iterations
+                    : "Warmup iteration " + (i + warmupIterations + 1) + "/" + warmupIterations);
+
+            deleteRecursively(outputDir);
+            Files.createDirectories(outputDir);
+            Path reducedDir = outputDir.resolve("reduced");
+            Path restoredDir = outputDir.resolve("restored");
+            Path imageDir = outputDir.resolve("image");
+            Path stockJmodsDir = outputDir.resolve("stock-jmods");
+            Path stockImageDir = outputDir.resolve("stock-image");
+
+            record(measured, REDUCE, measure(REDUCE, MeasuredMain.FALLBACK_JMOD,
+                    Collections.singletonList(fallbackJmodArgs(REDUCE, runtime, reducedDir, jmodFiles)),
+                    reducedDir, logsDir));
+
+            record(measured, RESTORE, measure(RESTORE, MeasuredMain.FALLBACK_JMOD,
+                    Collections.singletonList(fallbackJmodArgs(RESTORE, runtime, restoredDir, listJmodFiles(reducedDir))),
+                    restoredDir, logsDir));
+
+            if (!Files.exists(extractedDir)) {
+                verifyRestoredFiles(jmodFiles, restoredDir);
+                extractJmodFiles(restoredDir, extractedDir);
+            }
+
+            record(measured, JLINK, measure(JLINK, MeasuredMain.FALLBACK_JMOD,
+                    Collections.singletonList(fallbackJmodArgs(JLINK, runtime, imageDir, listJmodFiles(reducedDir))),
+                    imageDir, logsDir));
+
+            Files.createDirectories(stockJmodsDir);
+            record(measured, STOCK_JMOD, measure(STOCK_JMOD, "jmod",
+                    stockJmodArgs(runtime, extractedDir, stockJmodsDir),
+                    stockJmodsDir, logsDir));
+
+            record(measured, STOCK_JLINK, measure(STOCK_JLINK, "jlink",
+                    Collections.singletonList(Arrays.asList(
+                            "--module-path", restoredDir.toString(),
+                            "--add-modules", String.join(",", runtime.moduleNames),
+                            "--output", stockImageDir.toString())),
+                    stockImageDir, logsDir));
+        }
+
+        printReport(System.out);
+        if (csvFile != null) {
+            writeCsv(csvFile);
+            System.out.println("Samples written into " + csvFile.toAbsolutePath());
+        }
+    }
+
+    private List<String> fallbackJmodArgs(String mode, SyntheticRuntime runtime, Path output, List<Path> files) {
+        List<String> args = new ArrayList<>(Arrays.asList(
+                mode,
+                "--runtime-path", runtime.runtimePath.toString(),
+                "--output", output.toString(),
+                "--jobs", String.valueOf(jobs)));
+        for (Path file : files) {
+            args.add(file.toString());
+        }
+        return args;
+    }
+
+    private static List<List<String>> stockJmodArgs(SyntheticRuntime runtime, Path extractedDir, Path outputDir) {
+        String[][] sections = {
+                {JmodUtils.SECTION_CLASSES, "--class-path"},
+                {JmodUtils.SECTION_LIB, "--libs"},
+                {JmodUtils.SECTION_BIN, "--cmds"},
+                {JmodUtils.SECTION_CONF, "--config"},
+                {JmodUtils.SECTION_INCLUDE, "--header-files"},
+                {JmodUtils.SECTION_LEGAL, "--legal-notices"},
+                {JmodUtils.SECTION_MAN, "--man-pages"},
+        };
+
+        List<List<String>> res = new ArrayList<>();
+        for (String moduleName : runtime.moduleNames) {
+            List<String> args = new ArrayList<>();
+            args.add("create");
+            for (String[] section : sections) {
+                Path dir = extractedDir.resolve(moduleName).resolve(section[0]);
+                if (Files.isDirectory(dir)) {
+                    args.add(section[1]);
+                    args.add(dir.toString());
+                }
+            }
+            args.add(outputDir.resolve(moduleName + ".jmod").toString());
+            res.add(args);
+        }
+        return res;
+    }
+
+    /**
+     * Checks that the restored Jmod files contain the same files as the original ones.
+     * {@code module-info.class} is not compared, because jlink rewrites it in the runtime image.
+     */
+    private static void verifyRestoredFiles(List<Path> jmodFiles, Path restoredDir) throws IOException {
+        for (Path jmodFile : jmodFiles) {
+            Path restoredFile = restoredDir.resolve(jmodFile.getFileName());
+            if (!readEntries(jmodFile).equals(readEntries(restoredFile))) {
+                throw new IOException("The restored file " + restoredFile + " is different from " + jmodFile);
+            }
+        }
+    }
+
+    /**
+     * Checks that the digest cache does not change the results: the Jmod files reduced with a cache record
+     * as many files as the ones reduced without it, and the latter are restored correctly with the cache.
+     * The empty resources of the synthetic runtime share the offset of another resource in the jimage,
+     * so the cache must not confuse them.
+     */
+    private static void verifyDigestCache(SyntheticRuntime runtime, List<Path> jmodFiles, Path dir) throws IOException {
+        deleteRecursively(dir);
+        Path cacheDir = dir.resolve("cache");
+
+        JobResult reduced = runJob(JmodJob.reduce(), runtime, dir.resolve("reduced"), jmodFiles, null);
+        JobResult reducedWithCache = runJob(JmodJob.reduce(), runtime, dir.resolve("reduced-with-cache"), jmodFiles, cacheDir);
+        for (int i = 0; i < jmodFiles.size(); i++) {
+            ModuleResult expected = reduced.getModules().get(i);
+            ModuleResult actual = reducedWithCache.getModules().get(i);
+            if (expected.getDeduplicatedEntries() != actual.getDeduplicatedEntries()) {
+                throw new IOException("The digest cache changed the files recorded in " + actual.getTarget()
+                        + ": " + actual.getDeduplicatedEntries() + " instead of " + expected.getDeduplicatedEntries());
+            }
+        }
+
+        Path restoredDir = dir.resolve("restored");
+        runJob(JmodJob.restore(), runtime, restoredDir, listJmodFiles(dir.resolve("reduced")), cacheDir);
+        verifyRestoredFiles(jmodFiles, restoredDir);
+        deleteRecursively(dir);
+    }
+
+    private static JobResult runJob(JmodJob.Builder builder, SyntheticRuntime runtime, Path output, List<Path> files, Path cacheDir)
+            throws IOException {
+        builder.runtimePath(runtime.runtimePath).output(output).digestCache(cacheDir);
+        for (Path file : files) {
+            builder.addFile(file);
+        }
+        JobResult result = builder.build().run();
+        for (ModuleResult module : result.getModules()) {
+            if (module.getStatus() == ModuleResult.Status.FAILED) {
+                throw new IOException("Failed to process " + module.getSource() + ": " + module.getMessage(), module.getFailure());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the size and CRC-32 of the files in the Jmod file
+     */
+    private static Map<String, List<Long>> readEntries(Path jmodFile) throws IOException {
+        Map<String, List<Long>> res = new HashMap<>();
+        try (RawZipFile file = JmodUtils.openRaw(jmodFile)) {
+            for (RawZipFile.Entry entry : file.entries()) {
+                if (!entry.isDirectory() && !entry.getName().equals(MODULE_INFO)) {
+                    res.put(entry.getName(), Arrays.asList(entry.getSize(), entry.getCrc()));
+                }
+            }
+        }
+        return res;
+    }
+
+    private static void extractJmodFiles(Path jmodsDir, Path outputDir) throws IOException {
+        for (Path jmodFile : listJmodFiles(jmodsDir)) {
+            String moduleName = jmodFile.getFileName().toString();
+            moduleName = moduleName.substring(0, moduleName.length() - ".jmod".length());
+            SyntheticRuntime.runTool("jmod", "extract", "--dir", outputDir.resolve(moduleName).toString(), jmodFile.toString());
+        }
+    }
+
+    private static List<Path> listJmodFiles(Path dir) throws IOException {
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.filter(file -> file.getFileName().toString().endsWith(".jmod"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Runs the tool in a new process, with the same JVM options and class path as this process.
+     */
+    private static Sample measure(String step, String tool, List<List<String>> invocations, Path output, Path logsDir)
+            throws IOException, InterruptedException {
+        String fileName = step.replace(' ', '-');
+        Path invocationsFile = logsDir.resolve(fileName + ".args");
+        Path statsFile = logsDir.resolve(fileName + ".properties");
+        Path logFile = logsDir.resolve(fileName + ".log");
+
+        List<String> lines = new ArrayList<>();
+        for (List<String> invocation : invocations) {
+            lines.addAll(invocation);
+            lines.add("");
+        }
+        Files.write(invocationsFile, lines);
+        Files.deleteIfExists(statsFile);
+
+        List<String> command = new ArrayList<>();
+        String java = System.getProperty("os.name").startsWith("Windows") ? "java.exe" : "java";
+        command.add(Paths.get(System.getProperty("java.home"), "bin", java).toString());
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!arg.startsWith("-agentlib:jdwp") && !arg.startsWith("-Xrunjdwp")) {
+                command.add(arg);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MeasuredMain.class.getName());
+        command.add(statsFile.toString());
+        command.add(tool);
+        command.add(invocationsFile.toString());
+
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(logFile.toFile())
+                .start();
+        long start = System.nanoTime();
+        int status = process.waitFor();
+        long wallTime = System.nanoTime() - start;
+        if (status != 0) {
+            throw new IOException(step + " failed with exit status " + status + ", see " + logFile);
+        }
+
+        Properties stats = new Properties();
+        try (Reader reader = Files.newBufferedReader(statsFile)) {
+            stats.load(reader);
+        }
+
+        Sample sample = new Sample(
+                wallTime,
+                Long.parseLong(stats.getProperty(MeasuredMain.CPU_TIME)),
+                Long.parseLong(stats.getProperty(MeasuredMain.PEAK_RSS)),
+                Long.parseLong(stats.getProperty(MeasuredMain.READ_BYTES)),
+                Long.parseLong(stats.getProperty(MeasuredMain.WRITTEN_BYTES)),
+                SyntheticRuntime.sizeOf(output));
+        System.out.printf("  %-12s %,10.0f ms%n", step, wallTime / 1e6);
+        return sample;
+    }
+
+    private void record(boolean measured, String step, Sample sample) {
+        if (measured) {
+            samples.computeIfAbsent(step, key -> new ArrayList<>()).add(sample);
+        }
+    }
+
+    private void printReport(PrintStream out) {
+        out.println();
+        out.printf("Median of %d iterations:%n", iterations);
+        out.printf("%-12s %12s %12s %14s %12s %14s %12s%n",
+                "step", "wall (ms)", "CPU (ms)", "peak RSS (MiB)", "read (MiB)", "written (MiB)", "output (MiB)");
+        for (Map.Entry<String, List<Sample>> entry : samples.entrySet()) {
+            List<Sample> list = entry.getValue();
+            out.printf("%-12s %12s %12s %14s %12s %14s %12s%n",
+                    entry.getKey(),
+                    format(median(list, s -> s.wallTime), 1e6, "%,.0f"),
+                    format(median(list, s -> s.cpuTime), 1e6, "%,.0f"),
+                    format(median(list, s -> s.peakRss), MIB, "%,.1f"),
+                    format(median(list, s -> s.readBytes), MIB, "%,.1f"),
+                    format(median(list, s -> s.writtenBytes), MIB, "%,.1f"),
+                    format(median(list, s -> s.outputSize), MIB, "%,.1f"));
+        }
+
+        out.println();
+        printComparison(out, RESTORE, STOCK_JMOD);
+        printComparison(out, JLINK, STOCK_JLINK);
+    }
+
+    private void printComparison(PrintStream out, String step, String stockStep) {
+        List<Sample> list = samples.get(step);
+        List<Sample> stockList = samples.get(stockStep);
+        out.printf("%s / %s: wall time %.2fx, CPU time %.2fx, output size %.2fx%n", step, stockStep,
+                (double) median(list, s -> s.wallTime) / median(stockList, s -> s.wallTime),
+                (double) median(list, s -> s.cpuTime) / median(stockList, s -> s.cpuTime),
+                (double) median(list, s -> s.outputSize) / median(stockList, s -> s.outputSize));
+    }
+
+    private static long median(List<Sample> list, ToLongFunction<Sample> metric) {
+        long[] values = list.stream().mapToLong(metric).sorted().toArray();
+        if (values[0] < 0) {
+            return -1;
+        }
+        int middle = values.length / 2;
+        return values.length % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+
+    private static String format(long value, double unit, String format) {
+        return value < 0 ? "-" : String.format(format, value / unit);
+    }
+
+    private void writeCsv(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+            writer.println("step,iteration,wall_ns,cpu_ns,peak_rss_bytes,read_bytes,written_bytes,output_bytes");
+            for (Map.Entry<String, List<Sample>> entry : samples.entrySet()) {
+                List<Sample> list = entry.getValue();
+                for (int i = 0; i < list.size(); i++) {
+                    Sample s = list.get(i);
+                    writer.printf("%s,%d,%d,%d,%d,%d,%d,%d%n", entry.getKey(), i + 1,
+                            s.wallTime, s.cpuTime, s.peakRss, s.readBytes, s.writtenBytes, s.outputSize);
+                }
+            }
+        }
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.walk(path)) {
+            for (Path file : stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * The measurements of a process, in nanoseconds and bytes. The unavailable values are {@code -1}.
+     */
+    private static final class Sample {
+        final long wallTime;
+        final long cpuTime;
+        final long peakRss;
+        final long readBytes;
+        final long writtenBytes;
+        final long outputSize;
+
+        Sample(long wallTime, long cpuTime, long peakRss, long readBytes, long writtenBytes, long outputSize) {
+            this.wallTime = wallTime;
+            this.cpuTime = cpuTime;
+            this.peakRss = peakRss;
+            this.readBytes = readBytes;
+            this.writtenBytes = writtenBytes;
+            this.outputSize = outputSize;
+        }
+    }
+}
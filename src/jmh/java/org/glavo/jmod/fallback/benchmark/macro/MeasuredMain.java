@@ -0,0 +1,130 @@
+package org.glavo.jmod.fallback.benchmark.macro;
+
+import org.glavo.jmod.fallback.Main;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.spi.ToolProvider;
+
+/**
+ * The entry point of the processes measured by {@link MacroBenchmark}.
+ * <p>
+ * Usage: {@code MeasuredMain <stats file> <tool> <invocations file>}.
+ * The tool is {@value #FALLBACK_JMOD} or the name of a tool of the JDK, such as {@code jmod} or {@code jlink}.
+ * The invocations file contains one argument per line, and the invocations are separated by empty lines.
+ * When the process exits, the CPU time, the peak resident set size and the bytes read and written by it
+ * are written into the stats file. The last two are only available on Linux, and are {@code -1} otherwise.
+ */
+public final class MeasuredMain {
+    static final String FALLBACK_JMOD = "fallback-jmod";
+
+    static final String CPU_TIME = "cpuTime";
+    static final String PEAK_RSS = "peakRss";
+    static final String READ_BYTES = "readBytes";
+    static final String WRITTEN_BYTES = "writtenBytes";
+
+    private MeasuredMain() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        if (args.length != 3) {
+            System.err.println("Usage: MeasuredMain <stats file> <tool> <invocations file>");
+            System.exit(2);
+        }
+
+        Path statsFile = Paths.get(args[0]);
+        String tool = args[1];
+        List<String[]> invocations = readInvocations(Paths.get(args[2]));
+
+        // Main exits the process if a command fails, so the stats are written by a shutdown hook
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                writeStats(statsFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+
+        ToolProvider provider = null;
+        if (!tool.equals(FALLBACK_JMOD)) {
+            provider = ToolProvider.findFirst(tool).orElse(null);
+            if (provider == null) {
+                System.err.println("Tool not found: " + tool);
+                System.exit(2);
+            }
+        }
+
+        for (String[] invocation : invocations) {
+            if (provider == null) {
+                Main.main(invocation);
+            } else {
+                int status = provider.run(System.out, System.err, invocation);
+                if (status != 0) {
+                    System.exit(status);
+                }
+            }
+        }
+    }
+
+    private static List<String[]> readInvocations(Path file) throws IOException {
+        List<String[]> res = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.isEmpty()) {
+                if (!current.isEmpty()) {
+                    res.add(current.toArray(new String[0]));
+                    current.clear();
+                }
+            } else {
+                current.add(line);
+            }
+        }
+        if (!current.isEmpty()) {
+            res.add(current.toArray(new String[0]));
+        }
+        return res;
+    }
+
+    private static void writeStats(Path statsFile) throws IOException {
+        long cpuTime = -1;
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            cpuTime = ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+
+        Properties stats = new Properties();
+        stats.setProperty(CPU_TIME, String.valueOf(cpuTime));
+        // VmHWM is in kB, rchar and wchar include the bytes read from and written to the page cache
+        stats.setProperty(PEAK_RSS, String.valueOf(readProcValue("status", "VmHWM", 1024)));
+        stats.setProperty(READ_BYTES, String.valueOf(readProcValue("io", "rchar", 1)));
+        stats.setProperty(WRITTEN_BYTES, String.valueOf(readProcValue("io", "wchar", 1)));
+        try (Writer writer = Files.newBufferedWriter(statsFile)) {
+            stats.store(writer, null);
+        }
+    }
+
+    /**
+     * @return the value of the field in {@code /proc/self/<file>} multiplied by the unit, or {@code -1} if it is not available
+     */
+    private static long readProcValue(String file, String key, long unit) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self", file))) {
+                if (line.startsWith(key + ":")) {
+                    String value = line.substring(key.length() + 1).trim();
+                    int end = value.indexOf(' ');
+                    return Long.parseLong(end < 0 ? value : value.substring(0, end)) * unit;
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        return -1;
+    }
+}
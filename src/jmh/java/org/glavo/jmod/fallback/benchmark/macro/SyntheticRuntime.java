@@ -0,0 +1,282 @@
+package org.glavo.jmod.fallback.benchmark.macro;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.spi.ToolProvider;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A runtime image and the Jmod files it is linked from, generated with the tools of the local JDK.
+ * <p>
+ * The synthetic modules {@code bench.m000}, {@code bench.m001}... each require the previous one.
+ * Their classes are compiled from generated sources, and the native libraries are filled with
+ * pseudo-random bytes that compress about as well as real ones. The first package of each module also contains
+ * an empty resource followed by a non-empty one, jlink places both of them at the same offset of the jimage.
+ * Everything depends only on the configuration and the seed, so the same configuration
+ * generates the same files, and the files are generated again only if the configuration changes.
+ */
+final class SyntheticRuntime {
+    static final String MODULE_PREFIX = "bench.m";
+    private static final String JDK_MODULE = "java.base";
+    private static final int CLASSES_PER_PACKAGE = 50;
+    private static final String CONFIG_FILE_NAME = "synthetic.properties";
+    private static final int LAYOUT_VERSION = 2; // changed when the generated files change
+
+    static final class Config {
+        int modules = 20;
+        int classes = 200;
+        int methods = 8;
+        int nativeLibs = 3;
+        long nativeLibSize = 16L * 1024 * 1024;
+        long seed = 0;
+
+        Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("modules", String.valueOf(modules));
+            properties.setProperty("classes", String.valueOf(classes));
+            properties.setProperty("methods", String.valueOf(methods));
+            properties.setProperty("nativeLibs", String.valueOf(nativeLibs));
+            properties.setProperty("nativeLibSize", String.valueOf(nativeLibSize));
+            properties.setProperty("seed", String.valueOf(seed));
+            properties.setProperty("layoutVersion", String.valueOf(LAYOUT_VERSION));
+            properties.setProperty("java.home", System.getProperty("java.home"));
+            properties.setProperty("java.runtime.version", System.getProperty("java.runtime.version"));
+            return properties;
+        }
+    }
+
+    final Config config;
+    final Path jmodsDir;
+    final Path runtimePath;
+    final List<String> moduleNames;
+
+    private SyntheticRuntime(Config config, Path dir) {
+        this.config = config;
+        this.jmodsDir = dir.resolve("jmods");
+        this.runtimePath = dir.resolve("runtime");
+
+        List<String> moduleNames = new ArrayList<>();
+        moduleNames.add(JDK_MODULE);
+        for (int i = 0; i < config.modules; i++) {
+            moduleNames.add(moduleName(i));
+        }
+        this.moduleNames = Collections.unmodifiableList(moduleNames);
+    }
+
+    private static String moduleName(int index) {
+        return String.format("%s%03d", MODULE_PREFIX, index);
+    }
+
+    /**
+     * Returns the synthetic runtime in the folder, generates it if the folder does not contain one generated with the same configuration.
+     */
+    static SyntheticRuntime open(Path dir, Config config, PrintStream log) throws IOException {
+        SyntheticRuntime runtime = new SyntheticRuntime(config, dir);
+        Path configFile = dir.resolve(CONFIG_FILE_NAME);
+        Properties expected = config.toProperties();
+        if (Files.isRegularFile(configFile)) {
+            Properties actual = new Properties();
+            try (Reader reader = Files.newBufferedReader(configFile)) {
+                actual.load(reader);
+            }
+            if (actual.equals(expected)) {
+                log.println("Using the synthetic runtime in " + dir);
+                return runtime;
+            }
+        }
+
+        MacroBenchmark.deleteRecursively(dir);
+        Files.createDirectories(dir);
+        log.println("Generating the synthetic runtime in " + dir);
+        runtime.generate(dir, log);
+        try (Writer writer = Files.newBufferedWriter(configFile)) {
+            expected.store(writer, null);
+        }
+        return runtime;
+    }
+
+    private void generate(Path dir, PrintStream log) throws IOException {
+        Path jdkJmod = Paths.get(System.getProperty("java.home"), "jmods", JDK_MODULE + ".jmod");
+        if (!Files.isRegularFile(jdkJmod)) {
+            throw new IllegalStateException("The JDK does not contain the jmods folder: " + System.getProperty("java.home"));
+        }
+
+        Random random = new Random(config.seed);
+        Path sourceDir = dir.resolve("src");
+        Path classesDir = dir.resolve("classes");
+        Path libsDir = dir.resolve("libs");
+
+        log.println("Generating the sources of " + config.modules + " modules with " + config.classes + " classes each");
+        for (int i = 0; i < config.modules; i++) {
+            generateModuleSources(sourceDir, i, random);
+        }
+
+        log.println("Compiling the classes");
+        List<String> modules = moduleNames.subList(1, moduleNames.size());
+        runTool("javac",
+                "-d", classesDir.toString(),
+                "--module-source-path", sourceDir.toString(),
+                "--module", String.join(",", modules),
+                "-encoding", "UTF-8",
+                "-implicit:none",
+                "-nowarn");
+        for (String moduleName : modules) {
+            Path packageDir = classesDir.resolve(moduleName).resolve(packageName(moduleName, 0).replace('.', '/'));
+            Files.write(packageDir.resolve("empty.txt"), new byte[0]);
+            Files.write(packageDir.resolve("resource.txt"), Long.toHexString(random.nextLong()).getBytes(StandardCharsets.UTF_8));
+        }
+
+        log.println("Generating " + config.nativeLibs + " native libraries of " + config.nativeLibSize + " bytes");
+        for (int i = 0; i < config.nativeLibs; i++) {
+            Path libDir = libsDir.resolve(moduleName(i % config.modules));
+            Files.createDirectories(libDir);
+            generateNativeLibrary(libDir.resolve(System.mapLibraryName("bench" + i)), config.nativeLibSize, random);
+        }
+
+        log.println("Creating the Jmod files");
+        Files.createDirectories(jmodsDir);
+        Files.copy(jdkJmod, jmodsDir.resolve(jdkJmod.getFileName()));
+        for (String moduleName : modules) {
+            List<String> args = new ArrayList<>(Arrays.asList(
+                    "create",
+                    "--class-path", classesDir.resolve(moduleName).toString(),
+                    "--module-version", "1.0"));
+            Path libDir = libsDir.resolve(moduleName);
+            if (Files.isDirectory(libDir)) {
+                args.add("--libs");
+                args.add(libDir.toString());
+            }
+            args.add(jmodsDir.resolve(moduleName + ".jmod").toString());
+            runTool("jmod", args.toArray(new String[0]));
+        }
+
+        log.println("Linking the runtime image");
+        runTool("jlink",
+                "--module-path", jmodsDir.toString(),
+                "--add-modules", String.join(",", moduleNames),
+                "--output", runtimePath.toString());
+
+        MacroBenchmark.deleteRecursively(sourceDir);
+        MacroBenchmark.deleteRecursively(classesDir);
+        MacroBenchmark.deleteRecursively(libsDir);
+    }
+
+    private void generateModuleSources(Path sourceDir, int index, Random random) throws IOException {
+        String moduleName = moduleName(index);
+        Path moduleDir = sourceDir.resolve(moduleName);
+        int packages = Math.max(1, (config.classes + CLASSES_PER_PACKAGE - 1) / CLASSES_PER_PACKAGE);
+
+        StringBuilder moduleInfo = new StringBuilder();
+        moduleInfo.append("module ").append(moduleName).append(" {\n");
+        if (index > 0) {
+            moduleInfo.append("    requires ").append(moduleName(index - 1)).append(";\n");
+        }
+        for (int p = 0; p < packages; p++) {
+            moduleInfo.append("    exports ").append(packageName(moduleName, p)).append(";\n");
+        }
+        moduleInfo.append("}\n");
+        Files.createDirectories(moduleDir);
+        Files.write(moduleDir.resolve("module-info.java"), moduleInfo.toString().getBytes(StandardCharsets.UTF_8));
+
+        for (int c = 0; c < config.classes; c++) {
+            String packageName = packageName(moduleName, c / CLASSES_PER_PACKAGE);
+            String className = String.format("C%04d", c);
+            Path file = moduleDir.resolve(packageName.replace('.', '/')).resolve(className + ".java");
+            Files.createDirectories(file.getParent());
+            Files.write(file, generateClass(packageName, className, c % CLASSES_PER_PACKAGE > 0 ? String.format("C%04d", c - 1) : null, random)
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String packageName(String moduleName, int index) {
+        return String.format("%s.p%02d", moduleName, index);
+    }
+
+    private String generateClass(String packageName, String className, String previousClassName, Random random) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("package ").append(packageName).append(";\n\n");
+        builder.append("public final class ").append(className).append(" {\n");
+        builder.append("    public static final String ID = \"").append(Long.toHexString(random.nextLong())).append("\";\n");
+        builder.append("    private final long[] values = new long[").append(1 + random.nextInt(64)).append("];\n\n");
+
+        for (int m = 0; m < config.methods; m++) {
+            builder.append("    public long m").append(m).append("(long x) {\n");
+            builder.append("        long r = x * ").append(random.nextLong()).append("L + ").append(random.nextLong()).append("L;\n");
+            int statements = 1 + random.nextInt(8);
+            for (int s = 0; s < statements; s++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        builder.append("        r = Long.rotateLeft(r, ").append(random.nextInt(64)).append(");\n");
+                        break;
+                    case 1:
+                        builder.append("        if ((r & ").append(random.nextInt()).append(") == 0) r ^= values[(int) (x & ")
+                                .append("(values.length - 1))];\n");
+                        break;
+                    case 2:
+                        builder.append("        r += \"").append(Long.toString(random.nextLong() >>> 1, 36)).append("\".hashCode();\n");
+                        break;
+                    default:
+                        builder.append("        for (int i = 0; i < ").append(1 + random.nextInt(16)).append("; i++) r = r * 31 + i;\n");
+                        break;
+                }
+            }
+            if (previousClassName != null && m == 0) {
+                builder.append("        r ^= ").append(previousClassName).append(".ID.hashCode();\n");
+            }
+            builder.append("        return r;\n");
+            builder.append("    }\n\n");
+        }
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    /**
+     * Half of the blocks of the file are random, and the others repeat the previous block,
+     * so it can be compressed to about half of its size.
+     */
+    private static void generateNativeLibrary(Path file, long size, Random random) throws IOException {
+        byte[] block = new byte[256];
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long written = 0; written < size; written += block.length) {
+                if (written == 0 || random.nextBoolean()) {
+                    random.nextBytes(block);
+                }
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    /**
+     * @return the total size of the regular files in the folder, or the size of the file
+     */
+    static long sizeOf(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (Stream<Path> stream = Files.walk(path)) {
+            long res = 0;
+            for (Path file : stream.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                res += Files.size(file);
+            }
+            return res;
+        }
+    }
+
+    static void runTool(String name, String... args) throws IOException {
+        ToolProvider tool = ToolProvider.findFirst(name)
+                .orElseThrow(() -> new IllegalStateException("The JDK does not contain the tool " + name));
+        StringWriter output = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(output)) {
+            int status = tool.run(writer, writer, args);
+            writer.flush();
+            if (status != 0) {
+                throw new IOException(name + " " + String.join(" ", args) + " failed with exit status " + status + ":\n" + output);
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package org.glavo.jmod.fallback;
+
+import org.glavo.jmod.fallback.util.DigestCache;
+import org.glavo.jmod.fallback.util.ImageReaderPool;
+import org.glavo.jmod.fallback.util.Messages;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A long-running process that runs the commands forwarded by clients through a Unix domain socket,
+ * so the runtime paths stay open and their hash values stay cached between commands.
+ * <p>
+ * The daemon is started with {@code daemon <socket>}, and a command is forwarded with {@code client <socket> <command>},
+ * where the command is the same as on the command line. The relative paths of the command are resolved against
+ * the working directory of the client, and the output of the command is written to the output of the client.
+ * The command {@code client <socket> stop} stops the daemon.
+ * <p>
+ * The commands are run one at a time. For each runtime path, the daemon keeps a {@link ImageReaderPool}
+ * and the {@link DigestCache} of each cache directory, or an in-memory cache if no cache directory is specified.
+ * They are opened again if the jimage file of the runtime path has changed.
+ * <p>
+ * A request is the magic number, the version, the working directory and the arguments of the command,
+ * and the response is a sequence of frames: the output and the error output of the command, followed by its exit status.
+ * Unix domain sockets require Java 16 or later, they are accessed by reflection so that the tool still runs on Java 11.
+ */
+final class Daemon {
+    private static final int MAGIC = 0x464a444d; // FJDM
+    private static final int VERSION = 1;
+
+    private static final int FRAME_EXIT = 0;
+    private static final int FRAME_OUT = 1;
+    private static final int FRAME_ERR = 2;
+
+    private static final String STOP_COMMAND = "stop";
+
+    private Daemon() {
+    }
+
+    static final class RuntimeContext implements Closeable {
+        private final Path runtimePath;
+        private final Path jimagePath;
+        private final long jimageSize;
+        private final long jimageLastModifiedTime;
+        private final ImageReaderPool images;
+        private final Map<Path, DigestCache> digestCaches = new HashMap<>();
+
+        private RuntimeContext(Path runtimePath, Path jimagePath, long jimageSize, long jimageLastModifiedTime) throws IOException {
+            this.runtimePath = runtimePath;
+            this.jimagePath = jimagePath;
+            this.jimageSize = jimageSize;
+            this.jimageLastModifiedTime = jimageLastModifiedTime;
+            this.images = new ImageReaderPool(jimagePath);
+        }
+
+        ImageReaderPool getImages() {
+            return images;
+        }
+
+        /**
+         * @param cacheDir the cache directory, or {@code null} for an in-memory cache
+         */
+        DigestCache getDigestCache(Path cacheDir) throws IOException {
+            DigestCache cache = digestCaches.get(cacheDir);
+            if (cache == null) {
+                cache = cacheDir == null
+                        ? DigestCache.inMemory(runtimePath, jimagePath)
+                        : DigestCache.open(cacheDir, runtimePath, jimagePath);
+                digestCaches.put(cacheDir, cache);
+            }
+            return cache;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                for (DigestCache cache : digestCaches.values()) {
+                    cache.close();
+                }
+            } finally {
+                images.close();
+            }
+        }
+    }
+
+    static final class Runtimes implements Closeable {
+        private final Map<Path, RuntimeContext> runtimes = new HashMap<>();
+
+        RuntimeContext get(Options options) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(options.jimagePath, BasicFileAttributes.class);
+            long size = attributes.size();
+            long lastModifiedTime = attributes.lastModifiedTime().toMillis();
+
+            RuntimeContext runtime = runtimes.get(options.runtimePath);
+            if (runtime != null && (runtime.jimageSize != size || runtime.jimageLastModifiedTime != lastModifiedTime)) {
+                Main.printDebugMessage(() -> "Reopen runtime path: " + options.runtimePath);
+                runtimes.remove(options.runtimePath);
+                runtime.close();
+                runtime = null;
+            }
+            if (runtime == null) {
+                runtime = new RuntimeContext(options.runtimePath, options.jimagePath, size, lastModifiedTime);
+                runtimes.put(options.runtimePath, runtime);
+            }
+            return runtime;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException exception = null;
+            for (Iterator<RuntimeContext> it = runtimes.values().iterator(); it.hasNext(); ) {
+                RuntimeContext runtime = it.next();
+                it.remove();
+                try {
+                    runtime.close();
+                } catch (IOException e) {
+                    if (exception == null) {
+                        exception = e;
+                    } else {
+                        exception.addSuppressed(e);
+                    }
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream output;
+        private final int kind;
+
+        FrameOutputStream(DataOutputStream output, int kind) {
+            this.output = output;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (output) {
+                output.writeByte(kind);
+                output.writeInt(len);
+                output.write(b, off, len);
+                output.flush();
+            }
+        }
+    }
+
+    // Unix domain sockets
+
+    private static ProtocolFamily unixProtocolFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException e) {
+            throw unsupported(e);
+        }
+    }
+
+    private static SocketAddress unixAddress(Path path) {
+        try {
+            Method of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+            return (SocketAddress) of.invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw unsupported(e);
+        }
+    }
+
+    private static <T> T open(Class<T> channelClass) throws IOException {
+        try {
+            return channelClass.cast(channelClass.getMethod("open", ProtocolFamily.class).invoke(null, unixProtocolFamily()));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw unsupported(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw unsupported(e);
+        }
+    }
+
+    private static Exit unsupported(Throwable cause) {
+        Main.printErrorMessage(Messages.getMessage("error.daemon.unsupported"));
+        Main.printDebugMessage(cause::toString);
+        return new Exit(1);
+    }
+
+    private static SocketChannel connect(Path socket) throws IOException {
+        SocketChannel channel = open(SocketChannel.class);
+        try {
+            channel.connect(unixAddress(socket));
+            return channel;
+        } catch (Throwable e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Server
+
+    static void serve(String[] args) throws IOException {
+        if (args.length != 1) {
+            Main.printErrorMessageAndExit(Messages.getMessage("error.missing.socket"));
+        }
+
+        Path socket = Paths.get(args[0]).toAbsolutePath().normalize();
+        if (Files.exists(socket)) {
+            SocketChannel channel = null;
+            try {
+                channel = connect(socket);
+            } catch (IOException e) {
+                // No daemon is listening on the socket file left by a daemon that has been killed
+                Files.delete(socket);
+            }
+            if (channel != null) {
+                channel.close();
+                Main.printErrorMessageAndExit(Messages.getMessage("error.daemon.running", socket));
+            }
+        }
+
+        Thread deleteSocket = new Thread(() -> {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException ignored) {
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(deleteSocket);
+
+        try (ServerSocketChannel server = open(ServerSocketChannel.class);
+             Runtimes runtimes = new Runtimes()) {
+            server.bind(unixAddress(socket));
+            System.out.println(Messages.getMessage("info.daemon.listening", socket));
+
+            boolean running = true;
+            while (running) {
+                try (SocketChannel channel = server.accept()) {
+                    running = handle(channel, runtimes);
+                } catch (EOFException ignored) {
+                    // The connection is closed without a request, for example by another daemon checking the socket
+                } catch (IOException e) {
+                    Main.printErrorMessage(e.toString());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /**
+     * @return {@code false} if the daemon should stop
+     */
+    private static boolean handle(SocketChannel channel, Runtimes runtimes) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("Unsupported daemon request");
+        }
+        Path workingDir = Paths.get(input.readUTF());
+        String[] args = new String[input.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = input.readUTF();
+        }
+
+        // The output of the command is sent to the client, the commands are run one at a time
+        PrintStream daemonOut = System.out;
+        PrintStream daemonErr = System.err;
+        PrintStream out = new PrintStream(new FrameOutputStream(output, FRAME_OUT), true);
+        PrintStream err = new PrintStream(new FrameOutputStream(output, FRAME_ERR), true);
+        System.setOut(out);
+        System.setErr(err);
+
+        boolean stop = args.length == 1 && STOP_COMMAND.equals(args[0]);
+        int status;
+        try {
+            if (stop) {
+                out.println(Messages.getMessage("message.done"));
+                status = 0;
+            } else {
+                status = Main.run(args, workingDir, runtimes);
+            }
+        } catch (Throwable e) {
+            e.printStackTrace(err);
+            status = 1;
+        } finally {
+            out.flush();
+            err.flush();
+            System.setOut(daemonOut);
+            System.setErr(daemonErr);
+        }
+
+        synchronized (output) {
+            output.writeByte(FRAME_EXIT);
+            output.writeInt(status);
+            output.flush();
+        }
+        return !stop;
+    }
+
+    // Client
+
+    /**
+     * Forwards the command to the daemon, and writes its output to the output of this process.
+     *
+     * @return the exit status of the command
+     */
+    static int forward(String[] args) throws IOException {
+        if (args.length < 1) {
+            Main.printErrorMessage(Messages.getMessage("error.missing.socket"));
+            return 1;
+        }
+
+        Path socket = Paths.get(args[0]).toAbsolutePath().normalize();
+        SocketChannel channel;
+        try {
+            channel = connect(socket);
+        } catch (IOException e) {
+            Main.printErrorMessage(Messages.getMessage("error.daemon.not_running", socket));
+            Main.printDebugMessage(e::toString);
+            return 1;
+        } catch (Exit e) {
+            return e.getStatus();
+        }
+
+        try (channel) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(Paths.get("").toAbsolutePath().toString());
+            output.writeInt(args.length - 1);
+            for (int i = 1; i < args.length; i++) {
+                output.writeUTF(args[i]);
+            }
+            output.flush();
+
+            DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                int kind = input.readByte();
+                if (kind == FRAME_EXIT) {
+                    return input.readInt();
+                }
+
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                PrintStream target = kind == FRAME_ERR ? System.err : System.out;
+                target.write(bytes);
+                target.flush();
+            }
+        }
+    }
+}
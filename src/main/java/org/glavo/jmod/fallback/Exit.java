@@ -1,22 +1,42 @@
 package org.glavo.jmod.fallback;
 
+/**
+ * Thrown to stop processing the current command with an exit status,
+ * so the command line exits the process while the daemon only ends the request.
+ */
 public class Exit extends RuntimeException {
+    private final int status;
+
     public Exit() {
+        this(1);
+    }
+
+    public Exit(int status) {
+        super(null, null, false, false);
+        this.status = status;
     }
 
     public Exit(String message) {
         super(message);
+        this.status = 1;
     }
 
     public Exit(String message, Throwable cause) {
         super(message, cause);
+        this.status = 1;
     }
 
     public Exit(Throwable cause) {
         super(cause);
+        this.status = 1;
     }
 
     public Exit(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
         super(message, cause, enableSuppression, writableStackTrace);
+        this.status = 1;
+    }
+
+    public int getStatus() {
+        return status;
     }
 }
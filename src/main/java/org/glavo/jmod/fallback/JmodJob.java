@@ -0,0 +1,309 @@
+package org.glavo.jmod.fallback;
+
+import org.glavo.jmod.fallback.util.DigestAlgorithm;
+import org.glavo.jmod.fallback.util.DigestCache;
+import org.glavo.jmod.fallback.util.ImageReaderPool;
+import org.glavo.jmod.fallback.util.Messages;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A reduce, restore or jlink job, the programmatic equivalent of a command line invocation.
+ * <p>
+ * A job is created with {@link #reduce()}, {@link #restore()} or {@link #jlink()}, whose builder accepts
+ * the same options as the command line. Unlike the command line, a job never exits the process,
+ * and does not print the result of each Jmod file: {@link #run()} returns a {@link ModuleResult} for each Jmod file,
+ * and invalid options are reported by {@link IllegalArgumentException} or {@link IllegalStateException}.
+ * The only messages printed by a job are the debug messages, which are written to the standard output
+ * when {@link Main#debugOutput} is enabled, for example with the system property {@code org.glavo.jmod.fallback.debug}.
+ * <p>
+ * A job is immutable and can be run several times. Jobs can also run in several threads at the same time,
+ * as long as they do not write the same target files. Each run opens the runtime path by itself,
+ * the hash values can be shared between runs with {@link Builder#digestCache(Path)}.
+ */
+public final class JmodJob {
+    private final Main.Mode mode;
+    private final Options options;
+    private final Consumer<ModuleResult> listener;
+
+    private JmodJob(Main.Mode mode, Options options, Consumer<ModuleResult> listener) {
+        this.mode = mode;
+        this.options = options;
+        this.listener = listener;
+    }
+
+    public static Builder reduce() {
+        return new Builder(Main.Mode.REDUCE);
+    }
+
+    public static Builder restore() {
+        return new Builder(Main.Mode.RESTORE);
+    }
+
+    public static Builder jlink() {
+        return new Builder(Main.Mode.JLINK);
+    }
+
+    /**
+     * Runs the job. A failure in one Jmod file is reported by its {@link ModuleResult} and does not stop the others.
+     *
+     * @throws IOException if the runtime path cannot be read, or the image cannot be created in jlink mode
+     */
+    public JobResult run() throws IOException {
+        if (mode == Main.Mode.JLINK) {
+            if (Files.exists(options.targetDir)) {
+                boolean empty;
+                try (Stream<Path> stream = Files.list(options.targetDir)) {
+                    empty = !stream.findAny().isPresent();
+                }
+                if (!empty) {
+                    throw new IllegalStateException(Messages.getMessage("error.target.already.exists", options.targetDir));
+                }
+            }
+        }
+
+        for (Path target : options.files.values()) {
+            if (target != null) {
+                Files.createDirectories(target.getParent());
+            }
+        }
+
+        try (ImageReaderPool images = new ImageReaderPool(options.jimagePath);
+             DigestCache digestCache = DigestCache.open(options.digestCacheDir, options.runtimePath, options.jimagePath)) {
+            return Main.run(mode, options, images, digestCache, listener);
+        }
+    }
+
+    public static final class Builder {
+        private final Main.Mode mode;
+        private final String modeName;
+
+        private Path runtimePath;
+        private Path outputDir;
+        private final Map<Path, Path> files = new LinkedHashMap<>(); // from file to target file, or null for the default one
+        private final List<String> excludePatterns = new ArrayList<>();
+        private final List<String> withoutVerifyPatterns = new ArrayList<>();
+        private int jobs = 1;
+        private int hashThreads = 1;
+        private DigestAlgorithm digestAlgorithm = DigestAlgorithm.SHA_256;
+        private Path digestCacheDir;
+        private int fallbackListVersion = 1;
+        private boolean incremental = false;
+        private Consumer<ModuleResult> listener = result -> {
+        };
+
+        private Builder(Main.Mode mode) {
+            this.mode = mode;
+            this.modeName = mode.toString().toLowerCase(Locale.ROOT);
+        }
+
+        private static Path normalize(Path path) {
+            return path.toAbsolutePath().normalize();
+        }
+
+        private void requireMode(Main.Mode mode, String option) {
+            if (this.mode != mode) {
+                throw new IllegalStateException(Messages.getMessage("error.unsupported.option", modeName, option));
+            }
+        }
+
+        private static int requirePositive(String option, int value) {
+            if (value < 1) {
+                throw new IllegalArgumentException(Messages.getMessage("error.invalid.arg", option, value));
+            }
+            return value;
+        }
+
+        /**
+         * Same as {@code --runtime-path}. By default, it is the parent folder of the folder of the Jmod files.
+         */
+        public Builder runtimePath(Path runtimePath) {
+            this.runtimePath = normalize(runtimePath);
+            return this;
+        }
+
+        /**
+         * Same as {@code --output}. It is required in jlink mode.
+         */
+        public Builder output(Path outputDir) {
+            this.outputDir = normalize(outputDir);
+            return this;
+        }
+
+        /**
+         * Adds a Jmod file, whose target file is in the output directory, or the file itself if there is no output directory.
+         */
+        public Builder addFile(Path file) {
+            files.put(normalize(file), null);
+            return this;
+        }
+
+        /**
+         * Adds a Jmod file with its target file.
+         */
+        public Builder addFile(Path file, Path target) {
+            if (mode == Main.Mode.JLINK) {
+                throw new IllegalStateException(Messages.getMessage("error.unsupported.option", modeName, "target"));
+            }
+            files.put(normalize(file), normalize(target));
+            return this;
+        }
+
+        /**
+         * Adds all Jmod files in the folder, like {@code <folder>/*} on the command line.
+         */
+        public Builder addDirectory(Path dir) throws IOException {
+            try (DirectoryStream<Path> jmods = Files.newDirectoryStream(dir, "*.jmod")) {
+                for (Path jmod : jmods) {
+                    if (!Files.isDirectory(jmod)) {
+                        addFile(jmod);
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Same as {@code --exclude}.
+         */
+        public Builder exclude(String glob) {
+            requireMode(Main.Mode.REDUCE, "--exclude");
+            excludePatterns.add(glob);
+            return this;
+        }
+
+        /**
+         * Same as {@code --include-without-verify}.
+         */
+        public Builder includeWithoutVerify(String glob) {
+            requireMode(Main.Mode.REDUCE, "--include-without-verify");
+            withoutVerifyPatterns.add(glob);
+            return this;
+        }
+
+        /**
+         * Same as {@code --jobs}.
+         */
+        public Builder jobs(int jobs) {
+            this.jobs = requirePositive("--jobs", jobs);
+            return this;
+        }
+
+        /**
+         * Same as {@code --hash-threads}.
+         */
+        public Builder hashThreads(int hashThreads) {
+            requireMode(Main.Mode.REDUCE, "--hash-threads");
+            this.hashThreads = requirePositive("--hash-threads", hashThreads);
+            return this;
+        }
+
+        /**
+         * Same as {@code --digest}, for example {@code SHA-256}.
+         */
+        public Builder digest(String algorithm) {
+            requireMode(Main.Mode.REDUCE, "--digest");
+            DigestAlgorithm digestAlgorithm = DigestAlgorithm.of(algorithm);
+            if (digestAlgorithm == null) {
+                throw new IllegalArgumentException(Messages.getMessage("error.unsupported.digest", algorithm));
+            }
+            this.digestAlgorithm = digestAlgorithm;
+            return this;
+        }
+
+        /**
+         * Same as {@code --fallback-list-version}.
+         */
+        public Builder fallbackListVersion(int version) {
+            requireMode(Main.Mode.REDUCE, "--fallback-list-version");
+            if (version != 1 && version != 2) {
+                throw new IllegalArgumentException(Messages.getMessage("error.invalid.arg", "--fallback-list-version", version));
+            }
+            this.fallbackListVersion = version;
+            return this;
+        }
+
+        /**
+         * Same as {@code --digest-cache}.
+         */
+        public Builder digestCache(Path cacheDir) {
+            this.digestCacheDir = cacheDir == null ? null : normalize(cacheDir);
+            return this;
+        }
+
+        /**
+         * Same as {@code --incremental}. It requires an output directory.
+         */
+        public Builder incremental(boolean incremental) {
+            requireMode(Main.Mode.REDUCE, "--incremental");
+            this.incremental = incremental;
+            return this;
+        }
+
+        /**
+         * Sets the listener that is called with the result of each Jmod file as soon as it is processed.
+         * It may be called from several threads at the same time if {@link #jobs(int)} is greater than {@code 1}.
+         */
+        public Builder listener(Consumer<ModuleResult> listener) {
+            this.listener = Objects.requireNonNull(listener);
+            return this;
+        }
+
+        public JmodJob build() {
+            if (files.isEmpty()) {
+                throw new IllegalStateException(Messages.getMessage("error.missing.inputs"));
+            }
+            if (outputDir == null && (mode == Main.Mode.JLINK || incremental)) {
+                throw new IllegalStateException(Messages.getMessage("error.missing.outputs"));
+            }
+            if (outputDir != null && Files.exists(outputDir) && !Files.isDirectory(outputDir)) {
+                throw new IllegalStateException(Messages.getMessage("error.file.not.directory", outputDir));
+            }
+
+            Options res = new Options();
+            for (Map.Entry<Path, Path> entry : files.entrySet()) {
+                Path file = entry.getKey();
+                Path target = entry.getValue();
+                if (mode != Main.Mode.JLINK && target == null) {
+                    target = outputDir == null ? file : outputDir.resolve(file.getFileName());
+                }
+                res.files.put(file, target);
+            }
+
+            Path runtimePath = this.runtimePath;
+            if (runtimePath == null) {
+                for (Path file : files.keySet()) {
+                    Path parent = file.getParent() == null ? null : file.getParent().getParent();
+                    if (parent == null || runtimePath != null && !runtimePath.equals(parent)) {
+                        throw new IllegalStateException(Messages.getMessage("error.missing.runtime_path"));
+                    }
+                    runtimePath = parent;
+                }
+            }
+
+            Path jimagePath = runtimePath.resolve("lib").resolve("modules");
+            if (!Files.isRegularFile(jimagePath)) {
+                throw new IllegalStateException(Messages.getMessage("error.missing.jimage"));
+            }
+
+            res.runtimePath = runtimePath;
+            res.jimagePath = jimagePath;
+            res.targetDir = mode == Main.Mode.JLINK ? outputDir : null;
+            res.jobs = jobs;
+            res.hashThreads = hashThreads;
+            res.digestAlgorithm = digestAlgorithm;
+            res.digestCacheDir = digestCacheDir;
+            res.fallbackListVersion = fallbackListVersion;
+            res.incrementalOutputDir = incremental ? outputDir : null;
+            res.excludePatterns.addAll(excludePatterns);
+            res.withoutVerifyPatterns.addAll(withoutVerifyPatterns);
+            return new JmodJob(mode, res, listener);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.glavo.jmod.fallback;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The result of running a {@link JmodJob}, with a {@link ModuleResult} for each Jmod file in the order they were added.
+ */
+public final class JobResult {
+    private final List<ModuleResult> modules;
+    private final Duration elapsed;
+
+    JobResult(List<ModuleResult> modules, Duration elapsed) {
+        this.modules = List.copyOf(modules);
+        this.elapsed = elapsed;
+    }
+
+    public List<ModuleResult> getModules() {
+        return modules;
+    }
+
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return the number of Jmod files that failed to be processed
+     */
+    public int getFailures() {
+        int res = 0;
+        for (ModuleResult module : modules) {
+            if (module.getStatus() == ModuleResult.Status.FAILED) {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    public boolean isSuccessful() {
+        return getFailures() == 0;
+    }
+
+    public long getBytesSaved() {
+        long res = 0;
+        for (ModuleResult module : modules) {
+            res += module.getBytesSaved();
+        }
+        return res;
+    }
+
+    public long getDeduplicatedEntries() {
+        long res = 0;
+        for (ModuleResult module : modules) {
+            res += module.getDeduplicatedEntries();
+        }
+        return res;
+    }
+
+    public long getComputedDigests() {
+        long res = 0;
+        for (ModuleResult module : modules) {
+            res += module.getComputedDigests();
+        }
+        return res;
+    }
+
+    public long getSkippedDigests() {
+        long res = 0;
+        for (ModuleResult module : modules) {
+            res += module.getSkippedDigests();
+        }
+        return res;
+    }
+}
@@ -1,36 +1,71 @@
 package org.glavo.jmod.fallback;
 
-import jdk.internal.module.ModulePath;
 import jdk.tools.jlink.internal.Jlink;
 import jdk.tools.jlink.builder.*;
 import org.glavo.jmod.fallback.jlink.FallbackJmodPlugin;
+import org.glavo.jmod.fallback.module.FallbackJModModuleFinder;
 import org.glavo.jmod.fallback.util.*;
 
 import java.io.*;
-import java.lang.module.ModuleFinder;
 import java.lang.module.ModuleReference;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributeView;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import jdk.internal.jimage.*;
 
 public class Main {
     public static boolean debugOutput = Boolean.getBoolean("org.glavo.jmod.fallback.debug");
+    public static final long maxInFlightBytes = Long.getLong("org.glavo.jmod.fallback.maxInFlightBytes", Runtime.getRuntime().maxMemory() / 4);
     public static final String FALLBACK_LIST_FILE_NAME = "fallback.list";
 
     public static void main(String[] args) throws Throwable {
+        int status;
+        try {
+            if (args.length > 0 && args[0].equals("daemon")) {
+                Daemon.serve(Arrays.copyOfRange(args, 1, args.length));
+                status = 0;
+            } else if (args.length > 0 && args[0].equals("client")) {
+                status = Daemon.forward(Arrays.copyOfRange(args, 1, args.length));
+            } else {
+                status = run(args, Paths.get("").toAbsolutePath(), null);
+            }
+        } catch (Exit e) {
+            status = e.getStatus();
+        }
 
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs a command of the command line. Instead of exiting the process, the exit status is returned.
+     *
+     * @param workingDir the directory that relative paths are resolved against
+     * @param runtimes   the runtime paths kept open by the daemon, or {@code null} to open the runtime path only for this command
+     */
+    static int run(String[] args, Path workingDir, Daemon.Runtimes runtimes) throws Throwable {
+        try {
+            return runCommand(args, workingDir, runtimes);
+        } catch (Exit e) {
+            return e.getStatus();
+        }
+    }
+
+    private static int runCommand(String[] args, Path workingDir, Daemon.Runtimes runtimes) throws Throwable {
         if (args.length == 0) {
             showHelpMessage(System.err);
-            System.exit(1);
+            return 1;
         }
 
         Mode mode;
@@ -48,32 +83,138 @@ public class Main {
             case "-help":
             case "--help":
                 showHelpMessage(System.out);
-                return;
+                return 0;
             default:
                 printErrorMessage(Messages.getMessage("error.missing.mode", args[0]));
-                System.exit(1);
-                return;
+                return 1;
         }
 
         printDebugMessage(() -> "Mode: " + mode.toString().toLowerCase(Locale.ROOT));
 
-        Options options = handleOptions(mode, Arrays.copyOfRange(args, 1, args.length));
+        Options options = handleOptions(mode, workingDir, Arrays.copyOfRange(args, 1, args.length));
+
+        JobResult result;
+        try {
+            if (runtimes == null) {
+                try (ImageReaderPool images = new ImageReaderPool(options.jimagePath);
+                     DigestCache digestCache = DigestCache.open(options.digestCacheDir, options.runtimePath, options.jimagePath)) {
+                    result = run(mode, options, images, digestCache, Main::printModuleResult);
+                }
+            } else {
+                Daemon.RuntimeContext runtime = runtimes.get(options);
+                DigestCache digestCache = runtime.getDigestCache(options.digestCacheDir);
+                try {
+                    result = run(mode, options, runtime.getImages(), digestCache, Main::printModuleResult);
+                } finally {
+                    digestCache.flush();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            printErrorMessage(e.getMessage());
+            return 1;
+        }
+
+        if (result.getSkippedDigests() > 0) {
+            System.out.println(Messages.getMessage("info.prefilter.skipped",
+                    result.getSkippedDigests(), result.getSkippedDigests() + result.getComputedDigests()));
+        }
+
+        int failures = result.getFailures();
+        if (failures != 0) {
+            printErrorMessage(Messages.getMessage("error.process.failures", failures, options.files.size()));
+            return 1;
+        }
+
+        System.out.println(Messages.getMessage("message.done"));
+        return 0;
+    }
 
+    /**
+     * Runs the mode with the opened runtime path.
+     *
+     * @param listener called with the result of each Jmod file as soon as it is processed
+     */
+    static JobResult run(Mode mode, Options options, ImageReaderPool images, DigestCache digestCache,
+                         Consumer<ModuleResult> listener) throws IOException {
+        long startTime = System.nanoTime();
+        List<ModuleResult> results;
         switch (mode) {
             case JLINK:
-                jlink(options);
+                results = jlink(options, images, digestCache, listener);
                 break;
             case REDUCE:
-                reduce(options);
+                results = reduce(options, images, digestCache, listener);
                 break;
             case RESTORE:
-                restore(options);
+                results = restore(options, images, digestCache, listener);
                 break;
             default:
                 throw new AssertionError(mode);
         }
+        return new JobResult(results, Duration.ofNanos(System.nanoTime() - startTime));
+    }
 
-        System.out.println(Messages.getMessage("message.done"));
+    private interface ModuleTask {
+        void run(Path source, Path target, ModuleResult.Builder result) throws Exception;
+    }
+
+    /**
+     * Runs the task for each Jmod file with a {@link BatchExecutor}.
+     *
+     * @return the results in the order of the Jmod files
+     */
+    private static List<ModuleResult> runBatch(Options options, ModuleTask task, Consumer<ModuleResult> listener) {
+        Map<Path, ModuleResult> results = new ConcurrentHashMap<>();
+        AtomicReference<Throwable> listenerFailure = new AtomicReference<>();
+        BatchExecutor executor = new BatchExecutor(options.jobs, maxInFlightBytes);
+        executor.run(options.files,
+                (source, target) -> {
+                    ModuleResult.Builder builder = new ModuleResult.Builder(source, target);
+                    ModuleResult result;
+                    try {
+                        task.run(source, target, builder);
+                        result = builder.build();
+                    } catch (Throwable e) {
+                        result = builder.failed(e);
+                    }
+                    results.put(source, result);
+                    listener.accept(result);
+                },
+                // The failures of the tasks are recorded in the results, only the listener can fail here
+                (source, exception) -> listenerFailure.compareAndSet(null, exception));
+
+        Throwable failure = listenerFailure.get();
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw failure instanceof RuntimeException ? (RuntimeException) failure : new IllegalStateException(failure);
+        }
+
+        List<ModuleResult> res = new ArrayList<>(options.files.size());
+        for (Path source : options.files.keySet()) {
+            res.add(results.get(source));
+        }
+        return res;
+    }
+
+    /**
+     * Prints the message of the result of a Jmod file like the other messages of the command line.
+     */
+    private static void printModuleResult(ModuleResult result) {
+        switch (result.getStatus()) {
+            case UNCHANGED:
+            case SKIPPED:
+                if (result.getMessage() != null) {
+                    System.out.println(result.getMessage());
+                }
+                break;
+            case INVALID:
+                printErrorMessage(result.getMessage());
+                break;
+            case FAILED:
+                printProcessFailure(result.getSource(), result.getFailure());
+                break;
+        }
     }
 
     enum Mode {
@@ -92,12 +233,18 @@ public class Main {
         out.println(Messages.getMessage("message.help"));
     }
 
-    static Options handleOptions(Mode mode, String[] args) throws IOException {
+    static Options handleOptions(Mode mode, Path workingDir, String[] args) throws IOException {
         Options res = new Options();
         Path outputDir = null;
         Path runtimePath = null;
         String withoutVerify = null;
         String exclude = null;
+        Integer jobs = null;
+        Integer hashThreads = null;
+        DigestAlgorithm digestAlgorithm = null;
+        Path digestCacheDir = null;
+        Integer fallbackListVersion = null;
+        boolean incremental = false;
 
         int i = 0;
         loop:
@@ -108,8 +255,7 @@ public class Main {
                 case "-help":
                 case "--help":
                     showHelpMessage(System.out);
-                    System.exit(0);
-                    break;
+                    throw new Exit(0);
                 case "--output":
                 case "-d":
                     if (outputDir != null) {
@@ -120,7 +266,7 @@ public class Main {
                     }
                     String outputDirName = args[++i];
                     try {
-                        outputDir = Paths.get(outputDirName).toAbsolutePath().normalize();
+                        outputDir = workingDir.resolve(outputDirName).normalize();
                     } catch (InvalidPathException e) {
                         printErrorMessageAndExit(Messages.getMessage("error.missing.file", outputDirName));
                     }
@@ -140,7 +286,7 @@ public class Main {
                     }
                     String runtimePathName = args[++i];
                     try {
-                        runtimePath = Paths.get(runtimePathName).toAbsolutePath().normalize();
+                        runtimePath = workingDir.resolve(runtimePathName).normalize();
                     } catch (InvalidPathException e) {
                         printErrorMessageAndExit(Messages.getMessage("error.missing.file", runtimePathName));
                     }
@@ -167,6 +313,68 @@ public class Main {
                     }
                     exclude = args[++i];
                     break;
+                case "-j":
+                case "--jobs":
+                    if (jobs != null) {
+                        printErrorMessageAndExit(Messages.getMessage("error.repeat.options", arg));
+                    }
+                    if (i == args.length - 1) {
+                        printErrorMessageAndExit(Messages.getMessage("error.missing.arg", arg));
+                    }
+                    jobs = parsePositiveInt(arg, args[++i]);
+                    break;
+                case "--hash-threads":
+                    if (hashThreads != null) {
+                        printErrorMessageAndExit(Messages.getMessage("error.repeat.options", arg));
+                    }
+                    if (i == args.length - 1) {
+                        printErrorMessageAndExit(Messages.getMessage("error.missing.arg", arg));
+                    }
+                    hashThreads = parsePositiveInt(arg, args[++i]);
+                    break;
+                case "--digest":
+                    if (digestAlgorithm != null) {
+                        printErrorMessageAndExit(Messages.getMessage("error.repeat.options", arg));
+                    }
+                    if (i == args.length - 1) {
+                        printErrorMessageAndExit(Messages.getMessage("error.missing.arg", arg));
+                    }
+                    digestAlgorithm = DigestAlgorithm.of(args[++i]);
+                    if (digestAlgorithm == null) {
+                        printErrorMessageAndExit(Messages.getMessage("error.unsupported.digest", args[i]));
+                    }
+                    break;
+                case "--fallback-list-version":
+                    if (fallbackListVersion != null) {
+                        printErrorMessageAndExit(Messages.getMessage("error.repeat.options", arg));
+                    }
+                    if (i == args.length - 1) {
+                        printErrorMessageAndExit(Messages.getMessage("error.missing.arg", arg));
+                    }
+                    fallbackListVersion = parsePositiveInt(arg, args[++i]);
+                    if (fallbackListVersion != 1 && fallbackListVersion != 2) {
+                        printErrorMessageAndExit(Messages.getMessage("error.invalid.arg", arg, args[i]));
+                    }
+                    break;
+                case "--digest-cache":
+                    if (digestCacheDir != null) {
+                        printErrorMessageAndExit(Messages.getMessage("error.repeat.options", arg));
+                    }
+                    if (i == args.length - 1) {
+                        printErrorMessageAndExit(Messages.getMessage("error.missing.arg", arg));
+                    }
+                    try {
+                        digestCacheDir = workingDir.resolve(args[++i]).normalize();
+                    } catch (InvalidPathException e) {
+                        printErrorMessageAndExit(Messages.getMessage("error.invalid.path", e.getInput()));
+                    }
+                    break;
+                case "--incremental":
+                    if (incremental) {
+                        printErrorMessageAndExit(Messages.getMessage("error.repeat.options", arg));
+                    }
+                    incremental = true;
+                    break;
                 default:
                     break loop;
             }
@@ -207,7 +415,7 @@ public class Main {
                 if (file.endsWith("/*") || file.endsWith("\\*") || file.equals("*")) { // wildcard
                     file = file.substring(0, file.length() - 1);
 
-                    Path searchPath = Paths.get(file);
+                    Path searchPath = workingDir.resolve(file).normalize();
                     if (Files.exists(searchPath)) {
                         if (!Files.isDirectory(searchPath)) {
                             printErrorMessageAndExit(Messages.getMessage("error.file.not.directory", file));
@@ -225,12 +433,12 @@ public class Main {
                             }
                         } catch (IOException e) {
                             e.printStackTrace();
-                            System.exit(1);
+                            throw new Exit(1);
                         }
                     }
 
                 } else {
-                    Path path = Paths.get(file).toAbsolutePath().normalize();
+                    Path path = workingDir.resolve(file).normalize();
                     if (!Files.exists(path) || Files.isDirectory(path)) {
                         printErrorMessageAndExit(Messages.getMessage("error.missing.file", file));
                     }
@@ -283,132 +491,208 @@ public class Main {
             res.withoutVerifyPatterns.addAll(Arrays.asList(withoutVerify.split(":")));
         }
 
+        if (jobs != null) {
+            res.jobs = jobs;
+        }
+
+        if (hashThreads != null) {
+            if (mode != Mode.REDUCE) {
+                printErrorMessageAndExit(Messages.getMessage("error.unsupported.option", mode.toString().toLowerCase(Locale.ROOT), "--hash-threads"));
+            }
+            res.hashThreads = hashThreads;
+        }
+
+        if (digestAlgorithm != null) {
+            if (mode != Mode.REDUCE) {
+                printErrorMessageAndExit(Messages.getMessage("error.unsupported.option", mode.toString().toLowerCase(Locale.ROOT), "--digest"));
+            }
+            res.digestAlgorithm = digestAlgorithm;
+        }
+
+        if (fallbackListVersion != null) {
+            if (mode != Mode.REDUCE) {
+                printErrorMessageAndExit(Messages.getMessage("error.unsupported.option", mode.toString().toLowerCase(Locale.ROOT), "--fallback-list-version"));
+            }
+            res.fallbackListVersion = fallbackListVersion;
+        }
+
+        res.digestCacheDir = digestCacheDir;
+
+        if (incremental) {
+            if (mode != Mode.REDUCE) {
+                printErrorMessageAndExit(Messages.getMessage("error.unsupported.option", mode.toString().toLowerCase(Locale.ROOT), "--incremental"));
+            }
+            if (outputDir == null) {
+                printErrorMessageAndExit(Messages.getMessage("error.missing.outputs"));
+            }
+            res.incrementalOutputDir = outputDir;
+        }
+
         return res;
     }
 
-    private static void reduce(Options options) throws IOException {
-        try (ImageReader image = ImageReader.open(options.jimagePath)) {
-            for (Map.Entry<Path, Path> entry : options.files.entrySet()) {
-                try {
-                    reduce(options, options.runtimePath, image, entry.getKey(), entry.getValue());
-                } catch (Throwable ex) {
-                    ex.printStackTrace();
-                }
-            }
+    private static int parsePositiveInt(String option, String value) {
+        int res = 0;
+        try {
+            res = Integer.parseInt(value);
+        } catch (NumberFormatException ignored) {
+        }
+        if (res < 1) {
+            printErrorMessageAndExit(Messages.getMessage("error.invalid.arg", option, value));
+        }
+        return res;
+    }
+
+    private static ReduceManifest openReduceManifest(Options options) throws IOException {
+        // The options that change the reduced Jmod files, the manifest is discarded if they are changed
+        List<String> identity = new ArrayList<>();
+        identity.add(options.digestAlgorithm.getName());
+        identity.add(String.valueOf(options.fallbackListVersion));
+        identity.add(String.valueOf(options.excludePatterns.size()));
+        identity.addAll(options.excludePatterns);
+        identity.add(String.valueOf(options.withoutVerifyPatterns.size()));
+        identity.addAll(options.withoutVerifyPatterns);
+        return ReduceManifest.open(options.incrementalOutputDir, options.runtimePath, identity);
+    }
+
+    private static List<ModuleResult> reduce(Options options, ImageReaderPool images, DigestCache digestCache,
+                                             Consumer<ModuleResult> listener) throws IOException {
+        ExecutorService hashExecutor = options.hashThreads > 1
+                ? Executors.newFixedThreadPool(options.hashThreads, new DaemonThreadFactory("fallback-jmod-hash"))
+                : null;
 
+        ReduceManifest manifest = options.incrementalOutputDir == null ? null : openReduceManifest(options);
+
+        try {
+            List<ModuleResult> results = runBatch(options,
+                    (source, target, result) -> {
+                        if (manifest == null) {
+                            reduce(options, options.runtimePath, images, digestCache, hashExecutor, source, target, result);
+                            return;
+                        }
+
+                        if (manifest.isUnchanged(source, target)) {
+                            result.setStatus(ModuleResult.Status.UNCHANGED, Messages.getMessage("info.incremental.unchanged", source.getFileName()));
+                            return;
+                        }
+                        manifest.remove(source);
+                        reduce(options, options.runtimePath, images, digestCache, hashExecutor, source, target, result);
+                        manifest.record(source, target);
+                    },
+                    listener);
+
+            if (manifest != null) {
+                manifest.save();
+            }
+            return results;
+        } finally {
+            if (hashExecutor != null) {
+                hashExecutor.shutdownNow();
+            }
         }
     }
 
-    private static void reduce(Options options, Path runtimePath, ImageReader image, Path sourcePath, Path targetPath) throws
+    private static void reduce(Options options, Path runtimePath, ImageReaderPool images, DigestCache digestCache, ExecutorService hashExecutor,
+                               Path sourcePath, Path targetPath, ModuleResult.Builder result) throws
             IOException {
         printDebugMessage(() -> String.format("Reduce: [runtimePath=%s, sourcePath=%s, targetPath=%s]", runtimePath, sourcePath, targetPath));
         Path tempFile = targetPath.resolveSibling(targetPath.getFileName().toString() + ".tmp");
 
         Status status = Status.INCOMPLETE;
 
-        try (FileSystem input = JmodUtils.open(sourcePath)) {
-            Path fallbackList = input.getPath("/", JmodUtils.SECTION_CLASSES, FALLBACK_LIST_FILE_NAME);
-            if (Files.exists(fallbackList)) {
-                System.out.println(Messages.getMessage("info.already.fallback", sourcePath.getFileName()));
+        try (RawZipFile input = JmodUtils.openRaw(sourcePath)) {
+            if (input.getEntry(JmodUtils.SECTION_CLASSES + "/" + FALLBACK_LIST_FILE_NAME) != null) {
+                result.setStatus(ModuleResult.Status.SKIPPED, Messages.getMessage("info.already.fallback", sourcePath.getFileName()));
                 return;
             }
 
-            Path moduleInfo = input.getPath("/", JmodUtils.SECTION_CLASSES, "module-info.class");
-            if (Files.notExists(moduleInfo)) {
-                printErrorMessage(Messages.getMessage("error.missing.module_info", sourcePath.getFileName()));
+            RawZipFile.Entry moduleInfo = input.getEntry(JmodUtils.SECTION_CLASSES + "/module-info.class");
+            if (moduleInfo == null) {
+                result.setStatus(ModuleResult.Status.INVALID, Messages.getMessage("error.missing.module_info", sourcePath.getFileName()));
                 status = Status.SKIP;
                 return;
             }
 
-            String moduleName = ModuleNameFinder.findModuleName(moduleInfo);
+            byte[] moduleInfoBytes = input.readAllBytes(moduleInfo);
+            String moduleName = ModuleNameFinder.findModuleName(moduleInfoBytes);
             if (moduleName == null) {
                 status = Status.SKIP;
-                printErrorMessage(Messages.getMessage("error.missing.module_name", sourcePath.getFileName()));
+                result.setStatus(ModuleResult.Status.INVALID, Messages.getMessage("error.missing.module_name", sourcePath.getFileName()));
                 return;
             }
             printDebugMessage(() -> "Module Name: " + moduleName);
+            result.moduleName = moduleName;
 
-            byte[] filteredModuleInfo = ModuleHashesUtils.filter(moduleInfo);
+            byte[] filteredModuleInfo = ModuleHashesUtils.filter(new ByteArrayInputStream(moduleInfoBytes));
 
-            if (image.findNode("/modules/" + moduleName) == null) {
-                System.out.println(Messages.getMessage("info.module_not_in_runtime_path", moduleName));
+            if (!JmodUtils.containsModule(images.get(), moduleName)) {
+                result.setStatus(ModuleResult.Status.SKIPPED, Messages.getMessage("info.module_not_in_runtime_path", moduleName));
                 status = Status.SKIP;
                 return;
             }
 
-            Path root = input.getPath("/");
-
-            ReduceFileVisitor visitor = new ReduceFileVisitor(moduleName, runtimePath, image);
+            ReduceFileVisitor visitor = new ReduceFileVisitor(moduleName, runtimePath, images, options.digestAlgorithm, digestCache, hashExecutor);
 
             for (String excludePattern : options.excludePatterns) {
-                visitor.excludePatterns.add(input.getPathMatcher("glob:" + excludePattern));
+                visitor.excludePatterns.add(ZipUtils.globMatcher(excludePattern));
             }
 
             for (String withoutVerifyPattern : options.withoutVerifyPatterns) {
-                visitor.withoutVerifyPatterns.add(input.getPathMatcher("glob:" + withoutVerifyPattern));
+                visitor.withoutVerifyPatterns.add(ZipUtils.globMatcher(withoutVerifyPattern));
             }
 
-            Files.walkFileTree(root, visitor);
-
-            SortedMap<Path, String> hash = visitor.getRecordedHash();
-            if (hash.isEmpty()) {
-                System.out.println(Messages.getMessage("info.module_not_in_runtime_path", moduleName));
-                status = Status.SKIP;
-                return;
-            }
-
-            try (BufferedOutputStream output = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+            // The candidates are hashed while the entries are visited, then the entries that are not reduced
+            // are copied in the order of the source, and fallback.list is written before the first entry of the classes section.
+            // The new entries have the time of module-info.class in the source, so that the output is reproducible.
+            // The visitor is closed before the input, so that its hash tasks are stopped if writing fails.
+            try (visitor; BufferedOutputStream output = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
                 JmodUtils.writeMagicNumber(output);
-                try (ZipOutputStream zipOutput = new ZipOutputStream(output)) {
-                    SimpleFileVisitor<Path> v = new SimpleFileVisitor<>() {
-                        @Override
-                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                            String dirName = dir.toString();
-                            if (dirName.equals("/" + JmodUtils.SECTION_CLASSES)) {
-                                zipOutput.putNextEntry(new ZipEntry(JmodUtils.SECTION_CLASSES + "/" + FALLBACK_LIST_FILE_NAME));
-                                for (Map.Entry<Path, String> entry : hash.entrySet()) {
-                                    if (entry.getValue().isEmpty()) {
-                                        zipOutput.write('-');
-                                    } else {
-                                        zipOutput.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
-                                    }
+                try (RawZipOutputStream zipOutput = new RawZipOutputStream(output)) {
+                    List<RawZipFile.Entry> entries = new ArrayList<>();
+                    for (RawZipFile.Entry entry : input.entries()) {
+                        if (entry.isDirectory()) {
+                            continue;
+                        }
 
-                                    zipOutput.write(' ');
-                                    zipOutput.write(entry.getKey().toString().substring(1).getBytes(StandardCharsets.UTF_8));
-                                    zipOutput.write('\n');
+                        entries.add(entry);
+                        if (entry != moduleInfo) {
+                            visitor.visitEntry(entry.getName(), entry.getSize(), entry.getCrc(), () -> {
+                                try (InputStream i = input.getInputStream(entry)) {
+                                    return MessageDigestUtils.hash(options.digestAlgorithm, i);
                                 }
-                                zipOutput.closeEntry();
-                            }
-                            return FileVisitResult.CONTINUE;
+                            });
                         }
+                    }
 
-                        @Override
-                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                            if (!hash.containsKey(file)) {
-                                String fileName = file.toString().substring(1);
-
-                                ZipEntry entry = new ZipEntry(fileName);
-                                // entry.setLastModifiedTime(attrs.lastModifiedTime());
-                                // entry.setLastAccessTime(attrs.lastAccessTime());
-
-                                zipOutput.putNextEntry(entry);
-                                if (fileName.equals(JmodUtils.SECTION_CLASSES + "/module-info.class")) {
-                                    zipOutput.write(filteredModuleInfo);
-                                } else {
-                                    if (Files.isSymbolicLink(file)) {
-                                        throw new IOException("Cannot process symbolic links");
-                                    } else {
-                                        Files.copy(file, zipOutput);
-                                    }
-                                }
+                    visitor.finish();
+                    result.computedDigests = visitor.getComputedDigests();
+                    result.skippedDigests = visitor.getSkippedDigests();
 
-                                zipOutput.closeEntry();
-                            }
-                            return FileVisitResult.CONTINUE;
+                    SortedMap<String, String> hash = visitor.getRecordedHash();
+                    if (hash.isEmpty()) {
+                        result.setStatus(ModuleResult.Status.SKIPPED, Messages.getMessage("info.module_not_in_runtime_path", moduleName));
+                        status = Status.SKIP;
+                        return;
+                    }
+                    result.deduplicatedEntries = hash.size();
+
+                    long dosTime = moduleInfo.getDosTime();
+                    boolean fallbackListWritten = false;
+                    for (RawZipFile.Entry entry : entries) {
+                        String fileName = entry.getName();
+                        if (!fallbackListWritten && fileName.startsWith(JmodUtils.SECTION_CLASSES + "/")) {
+                            zipOutput.putNextEntry(JmodUtils.SECTION_CLASSES + "/" + FALLBACK_LIST_FILE_NAME, dosTime);
+                            FallbackUtils.writeFallbackList(zipOutput, options.digestAlgorithm, hash, options.fallbackListVersion);
+                            zipOutput.closeEntry();
+                            fallbackListWritten = true;
                         }
-                    };
 
-                    Files.walkFileTree(root, v);
+                        if (entry == moduleInfo) {
+                            zipOutput.writeEntry(fileName, filteredModuleInfo, dosTime);
+                        } else if (!hash.containsKey(fileName)) {
+                            zipOutput.copyRawEntry(input, entry);
+                        }
+                    }
                 }
 
                 status = Status.COMPLETED;
@@ -429,144 +713,105 @@ public class Main {
 
     }
 
-    private static void restore(Options options) throws IOException {
-        try (ImageReader image = ImageReader.open(options.jimagePath)) {
-            for (Map.Entry<Path, Path> entry : options.files.entrySet()) {
-                try {
-                    restore(options.runtimePath, image, entry.getKey(), entry.getValue());
-                } catch (Throwable ex) {
-                    ex.printStackTrace();
-                }
-            }
-
-        }
+    private static List<ModuleResult> restore(Options options, ImageReaderPool images, DigestCache digestCache,
+                                              Consumer<ModuleResult> listener) {
+        return runBatch(options,
+                (source, target, result) -> restore(options.runtimePath, images.get(), digestCache, source, target, result),
+                listener);
     }
 
-    private static void restore(Path runtimePath, ImageReader image, Path sourcePath, Path targetPath) throws
-            IOException {
+    private static void restore(Path runtimePath, BasicImageReader image, DigestCache digestCache, Path sourcePath, Path targetPath,
+                                ModuleResult.Builder result) throws IOException {
         printDebugMessage(() -> String.format("Restore: [runtimePath=%s, sourcePath=%s, targetPath=%s]", runtimePath, sourcePath, targetPath));
         Path tempFile = targetPath.resolveSibling(targetPath.getFileName().toString() + ".tmp");
         Files.deleteIfExists(tempFile);
 
         Status status = Status.INCOMPLETE;
 
-        try (FileSystem input = JmodUtils.open(sourcePath)) {
+        try (RawZipFile input = JmodUtils.openRaw(sourcePath)) {
 
-            Path fallbackList = input.getPath("/", JmodUtils.SECTION_CLASSES, FALLBACK_LIST_FILE_NAME);
-            if (Files.notExists(fallbackList)) {
-                System.out.println(Messages.getMessage("info.not.fallback", sourcePath.getFileName()));
+            RawZipFile.Entry fallbackList = input.getEntry(JmodUtils.SECTION_CLASSES + "/" + FALLBACK_LIST_FILE_NAME);
+            if (fallbackList == null) {
+                result.setStatus(ModuleResult.Status.SKIPPED, Messages.getMessage("info.not.fallback", sourcePath.getFileName()));
                 status = Status.SKIP;
                 return;
             }
 
-            Map<String, String> list = FallbackUtils.readFallbackList(fallbackList);
+            FallbackList list;
+            try (InputStream i = input.getInputStream(fallbackList)) {
+                list = FallbackUtils.readFallbackList(i);
+            }
+            DigestAlgorithm digestAlgorithm = list.getDigestAlgorithm();
 
-            Path moduleInfo = input.getPath("/", JmodUtils.SECTION_CLASSES, "/module-info.class");
-            if (Files.notExists(moduleInfo)) {
-                printErrorMessage(Messages.getMessage("error.missing.module_info", sourcePath.getFileName()));
+            RawZipFile.Entry moduleInfo = input.getEntry(JmodUtils.SECTION_CLASSES + "/module-info.class");
+            if (moduleInfo == null) {
+                result.setStatus(ModuleResult.Status.INVALID, Messages.getMessage("error.missing.module_info", sourcePath.getFileName()));
                 return;
             }
 
-            String moduleName = ModuleNameFinder.findModuleName(moduleInfo);
+            String moduleName = ModuleNameFinder.findModuleName(input.readAllBytes(moduleInfo));
             if (moduleName == null) {
-                printErrorMessage(Messages.getMessage("error.missing.module_name", sourcePath.getFileName()));
+                result.setStatus(ModuleResult.Status.INVALID, Messages.getMessage("error.missing.module_name", sourcePath.getFileName()));
                 return;
             }
             printDebugMessage(() -> "Module Name: " + moduleName);
+            result.moduleName = moduleName;
 
-            if (image.findNode("/modules/" + moduleName) == null) {
-                System.out.println(Messages.getMessage("info.module_not_in_runtime_path", moduleName));
+            if (!JmodUtils.containsModule(image, moduleName)) {
+                result.setStatus(ModuleResult.Status.SKIPPED, Messages.getMessage("info.module_not_in_runtime_path", moduleName));
                 return;
             }
 
-            Path root = input.getPath("/");
-
             try (BufferedOutputStream output = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
                 JmodUtils.writeMagicNumber(output);
-                try (ZipOutputStream zipOutput = new ZipOutputStream(output)) {
-
-                    for (Map.Entry<String, String> entry : list.entrySet()) {
-                        String fileName = entry.getKey();
-                        String hash = entry.getValue();
+                try (RawZipOutputStream zipOutput = new RawZipOutputStream(output)) {
+                    // The records and the entries of the jmod file are merged in path order in a single pass,
+                    // a record is only restored if the jmod file does not contain the file
+                    Integer[] records = new Integer[list.size()];
+                    String[] paths = new String[list.size()];
+                    for (int index = 0; index < records.length; index++) {
+                        records[index] = index;
+                        paths[index] = list.getPath(index);
+                    }
+                    Arrays.sort(records, (x, y) -> PathArrayComparator.comparePaths(paths[x], paths[y]));
 
-                        if (Files.exists(root.resolve(fileName))) {
-                            continue;
+                    List<RawZipFile.Entry> entries = new ArrayList<>();
+                    for (RawZipFile.Entry entry : input.entries()) {
+                        if (entry != fallbackList && !entry.isDirectory()) {
+                            entries.add(entry);
+                        }
+                    }
+                    entries.sort((x, y) -> PathArrayComparator.comparePaths(x.getName(), y.getName()));
+
+                    int recordIndex = 0;
+                    int entryIndex = 0;
+                    while (recordIndex < records.length || entryIndex < entries.size()) {
+                        int c;
+                        if (recordIndex == records.length) {
+                            c = 1;
+                        } else if (entryIndex == entries.size()) {
+                            c = -1;
+                        } else {
+                            c = PathArrayComparator.comparePaths(paths[records[recordIndex]], entries.get(entryIndex).getName());
                         }
 
-                        if (fileName.startsWith(JmodUtils.SECTION_CLASSES)) {
-                            ImageLocation location = image.findLocation(moduleName, fileName.substring(JmodUtils.SECTION_CLASSES.length() + 1));
-                            if (location == null) {
-                                throw new FileNotFoundException(fileName);
-                            }
-
+                        if (c < 0) {
+                            int index = records[recordIndex++];
+                            String hash = list.getHash(index);
+                            restoreFile(runtimePath, image, digestCache, moduleName, digestAlgorithm,
+                                    paths[index], hash, moduleInfo.getDosTime(), zipOutput);
+                            result.deduplicatedEntries++;
                             if (hash != null) {
-                                String actualHash;
-                                try (InputStream i = image.getResourceStream(location)) {
-                                    actualHash = MessageDigestUtils.hash(i);
-                                }
-
-                                if (!hash.equals(actualHash)) {
-                                    throw new IOException(Messages.getMessage("error.mismatch.hash", fileName));
-                                }
-                            }
-
-                            ZipEntry zipEntry = new ZipEntry(fileName);
-                            zipOutput.putNextEntry(zipEntry);
-                            try (InputStream i = image.getResourceStream(location)) {
-                                i.transferTo(zipOutput);
+                                result.computedDigests++;
                             }
-                            zipOutput.closeEntry();
-
                         } else {
-                            Path runtimeFilePath = runtimePath.resolve(JmodUtils.mapToRuntimePath(fileName));
-
-                            if (!Files.isRegularFile(runtimeFilePath)) {
-                                throw new FileNotFoundException(runtimeFilePath.toString());
+                            if (c == 0) {
+                                recordIndex++;
                             }
-
-                            if (hash != null) {
-                                String actualHash = MessageDigestUtils.hash(runtimeFilePath);
-                                if (!hash.equals(actualHash)) {
-                                    throw new IOException(Messages.getMessage("error.mismatch.hash", fileName));
-                                }
-                            }
-
-                            BasicFileAttributes attributes = Files.getFileAttributeView(runtimeFilePath, BasicFileAttributeView.class).readAttributes();
-
-                            ZipEntry zipEntry = new ZipEntry(fileName);
-                            //zipEntry.setLastAccessTime(attributes.lastAccessTime());
-                            //zipEntry.setLastModifiedTime(attributes.lastModifiedTime());
-
-                            zipOutput.putNextEntry(zipEntry);
-                            Files.copy(runtimeFilePath, zipOutput);
-                            zipOutput.closeEntry();
+                            // Entries of the jmod file are copied as they are stored, without being decompressed
+                            zipOutput.copyRawEntry(input, entries.get(entryIndex++));
                         }
-
                     }
-
-                    SimpleFileVisitor<Path> v = new SimpleFileVisitor<>() {
-                        @Override
-                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                            if (!file.toString().equals("/" + JmodUtils.SECTION_CLASSES + "/" + FALLBACK_LIST_FILE_NAME)) {
-                                String fileName = file.toString().substring(1);
-
-                                ZipEntry entry = new ZipEntry(fileName);
-                                entry.setLastModifiedTime(attrs.lastModifiedTime());
-                                entry.setLastAccessTime(attrs.lastAccessTime());
-
-                                zipOutput.putNextEntry(entry);
-                                if (Files.isSymbolicLink(file)) {
-                                    throw new IOException("Cannot process symbolic links");
-                                } else {
-                                    Files.copy(file, zipOutput);
-                                }
-                                zipOutput.closeEntry();
-                            }
-                            return FileVisitResult.CONTINUE;
-                        }
-                    };
-
-                    Files.walkFileTree(root, v);
                 }
 
                 status = Status.COMPLETED;
@@ -587,30 +832,66 @@ public class Main {
         }
     }
 
-    private static void jlink(Options options) throws IOException {
+    /**
+     * Writes a file of the fallback list to the output. The file is read only once,
+     * its hash value is computed from the content that is written.
+     *
+     * @param dosTime the time of the entry, the time of {@code module-info.class} so that the output is reproducible
+     */
+    private static void restoreFile(Path runtimePath, BasicImageReader image, DigestCache digestCache, String moduleName,
+                                    DigestAlgorithm digestAlgorithm, String fileName, String hash, long dosTime,
+                                    RawZipOutputStream zipOutput) throws IOException {
+        String actualHash;
+        if (fileName.startsWith(JmodUtils.SECTION_CLASSES)) {
+            ImageLocation location = image.findLocation(moduleName, fileName.substring(JmodUtils.SECTION_CLASSES.length() + 1));
+            if (location == null) {
+                throw new FileNotFoundException(fileName);
+            }
 
-        Path[] jmods = options.files.keySet().toArray(Path[]::new);
+            ByteBuffer content = image.getResourceBuffer(location);
+            try {
+                actualHash = hash != null ? digestCache.hash(digestAlgorithm, location, content) : null;
+                zipOutput.putNextEntry(fileName, dosTime);
+                zipOutput.write(content.duplicate());
+                zipOutput.closeEntry();
+            } finally {
+                BasicImageReader.releaseByteBuffer(content);
+            }
+        } else {
+            Path runtimeFilePath = runtimePath.resolve(JmodUtils.mapToRuntimePath(fileName));
 
-        Set<String> moduleNames = new LinkedHashSet<>();
+            if (!Files.isRegularFile(runtimeFilePath)) {
+                throw new FileNotFoundException(runtimeFilePath.toString());
+            }
 
-        for (Path jmod : jmods) {
-            try (FileSystem fs = JmodUtils.open(jmod)) {
-                Path path = fs.getPath("/classes/module-info.class");
-                if (!Files.isRegularFile(path)) {
-                    throw new IOException(Messages.getMessage("error.missing.module_info", jmod.getFileName()));
-                }
-                String moduleName = ModuleNameFinder.findModuleName(path);
-                if (moduleName == null) {
-                    throw new IOException(Messages.getMessage("error.missing.module_name", jmod.getFileName()));
-                }
+            zipOutput.putNextEntry(fileName, dosTime);
+            actualHash = MessageDigestUtils.copy(digestAlgorithm, runtimeFilePath, zipOutput);
+            zipOutput.closeEntry();
+        }
 
-                if (!moduleNames.add(moduleName)) {
-                    throw new IOException(Messages.getMessage("error.repeat.module", moduleName));
-                }
-            }
+        // The temporary file is discarded if the hash value does not match
+        if (hash != null && !hash.equals(actualHash)) {
+            throw new IOException(Messages.getMessage("error.mismatch.hash", fileName));
+        }
+    }
+
+    private static List<ModuleResult> jlink(Options options, ImageReaderPool images, DigestCache digestCache,
+                                            Consumer<ModuleResult> listener) throws IOException {
+
+        // The jmod files are scanned once, and the descriptors are reused from the cache directory if they have not changed
+        try (FallbackJModModuleFinder finder = InternalAccess.getModuleFinderFactory().create(
+                images, new ArrayList<>(options.files.keySet()), options.digestCacheDir)) {
+            return jlink(options, images, digestCache, finder, listener);
+        }
+    }
+
+    private static List<ModuleResult> jlink(Options options, ImageReaderPool images, DigestCache digestCache,
+                                            FallbackJModModuleFinder finder, Consumer<ModuleResult> listener) throws IOException {
+        Set<String> moduleNames = new LinkedHashSet<>();
+        for (ModuleReference ref : finder.findAll()) {
+            moduleNames.add(ref.descriptor().name());
         }
 
-        ModuleFinder finder = ModulePath.of(Runtime.version(), true, jmods);
         ModuleReference baseModule = finder.find("java.base")
                 .orElseThrow(() -> new IllegalArgumentException(Messages.getMessage("error.missing.base")));
 
@@ -620,21 +901,41 @@ public class Main {
 
         if (Runtime.version().feature() != baseVersion.feature() ||
                 Runtime.version().interim() != baseVersion.interim()) {
-            printErrorMessageAndExit(Messages.getMessage("error.mismatch.java.version", baseVersion, Runtime.version()));
+            throw new IllegalArgumentException(Messages.getMessage("error.mismatch.java.version", baseVersion, Runtime.version()));
         }
 
         Jlink.JlinkConfiguration configuration = new Jlink.JlinkConfiguration(
                 options.targetDir, moduleNames, ByteOrder.nativeOrder(), finder
         );
 
-        try (ImageReader image = ImageReader.open(options.jimagePath)) {
-            FallbackJmodPlugin plugin = new FallbackJmodPlugin(options, image);
+        ExecutorService executor = options.jobs > 1
+                ? Executors.newFixedThreadPool(options.jobs, new DaemonThreadFactory("fallback-jmod-jlink"))
+                : null;
+
+        try {
+            FallbackJmodPlugin plugin = InternalAccess.getJlinkPluginFactory().create(options, images, digestCache, executor);
             Jlink.PluginsConfiguration pluginsConfiguration = new Jlink.PluginsConfiguration(
                     List.of(plugin), new DefaultImageBuilder(options.targetDir, Map.of()), null
             );
 
             Jlink jlink = new Jlink();
             jlink.build(configuration, pluginsConfiguration);
+
+            List<ModuleResult> results = new ArrayList<>();
+            for (ModuleReference ref : finder.findAll()) {
+                String moduleName = ref.descriptor().name();
+                Path source = Paths.get(ref.location().orElseThrow());
+                ModuleResult result = new ModuleResult(source, null, moduleName, ModuleResult.Status.PROCESSED, null,
+                        Files.size(source), -1, plugin.getFallbackEntries(moduleName), plugin.getVerifiedEntries(moduleName), 0,
+                        Duration.ZERO, null);
+                results.add(result);
+                listener.accept(result);
+            }
+            return results;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
         }
     }
 
@@ -659,8 +960,20 @@ public class Main {
         }
     }
 
+    private static void printProcessFailure(Path file, Throwable exception) {
+        synchronized (System.err) {
+            printErrorMessage(Messages.getMessage("error.process.failed", file.getFileName(), exception));
+            if (debugOutput) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Prints the error message and stops the current command with {@link Exit}.
+     */
     public static void printErrorMessageAndExit(String message) {
         printErrorMessage(message);
-        System.exit(1);
+        throw new Exit(1);
     }
 }
@@ -0,0 +1,209 @@
+package org.glavo.jmod.fallback;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * The result of processing a Jmod file in a {@link JmodJob}.
+ */
+public final class ModuleResult {
+    public enum Status {
+        /**
+         * The Jmod file has been reduced, restored or linked.
+         */
+        PROCESSED,
+        /**
+         * The Jmod file has not changed since it was last reduced into the output directory, so it is not reduced again.
+         */
+        UNCHANGED,
+        /**
+         * The Jmod file does not need to be processed, for example it is already a fallback Jmod file,
+         * or its module is not in the runtime path.
+         */
+        SKIPPED,
+        /**
+         * The Jmod file does not contain a valid module descriptor.
+         */
+        INVALID,
+        /**
+         * Failed to process the Jmod file, see {@link #getFailure()}.
+         */
+        FAILED
+    }
+
+    private final Path source;
+    private final Path target;
+    private final String moduleName;
+    private final Status status;
+    private final String message;
+    private final long sourceSize;
+    private final long targetSize;
+    private final int deduplicatedEntries;
+    private final long computedDigests;
+    private final long skippedDigests;
+    private final Duration elapsed;
+    private final Throwable failure;
+
+    ModuleResult(Path source, Path target, String moduleName, Status status, String message,
+                 long sourceSize, long targetSize, int deduplicatedEntries, long computedDigests, long skippedDigests,
+                 Duration elapsed, Throwable failure) {
+        this.source = source;
+        this.target = target;
+        this.moduleName = moduleName;
+        this.status = status;
+        this.message = message;
+        this.sourceSize = sourceSize;
+        this.targetSize = targetSize;
+        this.deduplicatedEntries = deduplicatedEntries;
+        this.computedDigests = computedDigests;
+        this.skippedDigests = skippedDigests;
+        this.elapsed = elapsed;
+        this.failure = failure;
+    }
+
+    /**
+     * Collects the result while a Jmod file is processed. The status is {@link Status#PROCESSED} unless it is changed.
+     */
+    static final class Builder {
+        private final Path source;
+        private final Path target;
+        private final long startTime = System.nanoTime();
+        private final long sourceSize;
+
+        String moduleName;
+        Status status = Status.PROCESSED;
+        String message;
+        int deduplicatedEntries;
+        long computedDigests;
+        long skippedDigests;
+
+        Builder(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+
+            long size;
+            try {
+                size = Files.size(source);
+            } catch (IOException e) {
+                size = -1;
+            }
+            this.sourceSize = size;
+        }
+
+        void setStatus(Status status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+
+        ModuleResult build() {
+            long targetSize = -1;
+            if (target != null && status != Status.INVALID) {
+                try {
+                    targetSize = Files.size(target);
+                } catch (IOException ignored) {
+                }
+            }
+            return new ModuleResult(source, target, moduleName, status, message, sourceSize, targetSize,
+                    deduplicatedEntries, computedDigests, skippedDigests, Duration.ofNanos(System.nanoTime() - startTime), null);
+        }
+
+        ModuleResult failed(Throwable failure) {
+            return new ModuleResult(source, target, moduleName, Status.FAILED, null, sourceSize, -1,
+                    0, 0, 0, Duration.ofNanos(System.nanoTime() - startTime), failure);
+        }
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    /**
+     * @return the target file, or {@code null} in jlink mode
+     */
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the name of the module, or {@code null} if it is not known
+     */
+    public String getModuleName() {
+        return moduleName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the localized message that describes why the Jmod file is unchanged, skipped or invalid, or {@code null}
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the size of the source file, or {@code -1} if it is not known
+     */
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    /**
+     * @return the size of the target file, or {@code -1} if it has not been written
+     */
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * @return the size of the source file minus the size of the target file, which is negative for restored files,
+     * or {@code 0} if either size is not known
+     */
+    public long getBytesSaved() {
+        return sourceSize < 0 || targetSize < 0 ? 0 : sourceSize - targetSize;
+    }
+
+    /**
+     * @return the number of files recorded in {@code fallback.list} instead of being stored in the Jmod file
+     * when reducing, or the number of files read from the runtime path when restoring or linking
+     */
+    public int getDeduplicatedEntries() {
+        return deduplicatedEntries;
+    }
+
+    /**
+     * @return the number of hash values computed to compare or verify the files
+     */
+    public long getComputedDigests() {
+        return computedDigests;
+    }
+
+    /**
+     * @return the number of hash values that are not computed because the CRC-32 of the files is different
+     */
+    public long getSkippedDigests() {
+        return skippedDigests;
+    }
+
+    /**
+     * @return the time spent on the Jmod file, or {@link Duration#ZERO} in jlink mode, in which the modules are linked together
+     */
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return the exception that caused the failure, or {@code null} if the status is not {@link Status#FAILED}
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return "ModuleResult[source=" + source + ", moduleName=" + moduleName + ", status=" + status + "]";
+    }
+}
@@ -1,5 +1,7 @@
 package org.glavo.jmod.fallback;
 
+import org.glavo.jmod.fallback.util.DigestAlgorithm;
+
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
@@ -12,6 +14,12 @@ public final class Options {
     public final Map<Path, Path> files = new LinkedHashMap<>(); // from file to target file
 
     public Path targetDir; // For jlink
+    public int jobs = 1;
+    public int hashThreads = 1;
+    DigestAlgorithm digestAlgorithm = DigestAlgorithm.SHA_256;
+    public Path digestCacheDir;
+    public int fallbackListVersion = 1;
+    public Path incrementalOutputDir; // For incremental reduce
     final List<String> withoutVerifyPatterns = new ArrayList<>();
     final List<String> excludePatterns = new ArrayList<>();
 }
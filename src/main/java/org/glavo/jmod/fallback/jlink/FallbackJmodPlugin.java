@@ -1,7 +1,6 @@
 package org.glavo.jmod.fallback.jlink;
 
 import jdk.internal.jimage.ImageLocation;
-import jdk.internal.jimage.ImageReader;
 import jdk.tools.jlink.internal.plugins.*;
 import jdk.tools.jlink.plugin.Plugin;
 import jdk.tools.jlink.plugin.ResourcePool;
@@ -9,10 +8,13 @@ import jdk.tools.jlink.plugin.ResourcePoolBuilder;
 import jdk.tools.jlink.plugin.ResourcePoolEntry;
 import org.glavo.jmod.fallback.Main;
 import org.glavo.jmod.fallback.Options;
+import org.glavo.jmod.fallback.util.DigestAlgorithm;
+import org.glavo.jmod.fallback.util.DigestCache;
+import org.glavo.jmod.fallback.util.FallbackList;
 import org.glavo.jmod.fallback.util.FallbackUtils;
+import org.glavo.jmod.fallback.util.ImageReaderPool;
+import org.glavo.jmod.fallback.util.InternalAccess;
 import org.glavo.jmod.fallback.util.JmodUtils;
-import org.glavo.jmod.fallback.util.MessageDigestUtils;
-import org.glavo.jmod.fallback.util.Messages;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -21,17 +23,36 @@ import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 
 public class FallbackJmodPlugin extends AbstractPlugin {
-    private final Options options;
-    private final ImageReader image;
+    static {
+        InternalAccess.setJlinkPluginFactory(FallbackJmodPlugin::new);
+    }
 
-    public FallbackJmodPlugin(Options options, ImageReader image) {
+    private final Options options;
+    private final ImageReaderPool images;
+    private final DigestCache digestCache;
+    private final ExecutorService executor;
+
+    // The number of files added from the runtime path, and of those whose hash values are verified, for each module
+    private final Map<String, Integer> fallbackEntries = new HashMap<>();
+    private final Map<String, Integer> verifiedEntries = new HashMap<>();
+
+    /**
+     * @param executor the executor that verifies the fallback files in advance, or {@code null} to verify them when they are read
+     * @see InternalAccess#getJlinkPluginFactory()
+     */
+    FallbackJmodPlugin(Options options, ImageReaderPool images, DigestCache digestCache, ExecutorService executor) {
         super("fallback-jmod");
         this.options = options;
-        this.image = image;
+        this.images = images;
+        this.digestCache = digestCache;
+        this.executor = executor;
     }
 
     @Override
@@ -62,96 +83,138 @@ public class FallbackJmodPlugin extends AbstractPlugin {
 
     @Override
     public ResourcePool transform(ResourcePool in, ResourcePoolBuilder out) {
-        in.entries().forEach(resource -> {
-            String moduleName = resource.moduleName();
-            if (resource.path().equals("/" + moduleName + "/" + Main.FALLBACK_LIST_FILE_NAME)) {
-                try {
-                    Map<String, String> list;
-                    try (InputStream input = resource.content()) {
-                        list = FallbackUtils.readFallbackList(input);
-                    }
-
-                    for (Map.Entry<String, String> entry : list.entrySet()) {
-                        String fileName = entry.getKey();
-                        String hash = entry.getValue();
-
-                        ResourcePoolEntry.Type type;
-                        if (fileName.startsWith(JmodUtils.SECTION_CLASSES + "/")) {
-                            type = ResourcePoolEntry.Type.CLASS_OR_RESOURCE;
-                        } else if (fileName.startsWith(JmodUtils.SECTION_CONF + "/")) {
-                            type = ResourcePoolEntry.Type.CONFIG;
-                        } else if (fileName.startsWith(JmodUtils.SECTION_INCLUDE + "/")) {
-                            type = ResourcePoolEntry.Type.HEADER_FILE;
-                        } else if (fileName.startsWith(JmodUtils.SECTION_LEGAL + "/")) {
-                            type = ResourcePoolEntry.Type.LEGAL_NOTICE;
-                        } else if (fileName.startsWith(JmodUtils.SECTION_MAN + "/")) {
-                            type = ResourcePoolEntry.Type.MAN_PAGE;
-                        } else if (fileName.startsWith(JmodUtils.SECTION_BIN)) {
-                            type = ResourcePoolEntry.Type.NATIVE_CMD;
-                        } else if (fileName.startsWith(JmodUtils.SECTION_LIB)) {
-                            type = ResourcePoolEntry.Type.NATIVE_LIB;
-                        } else {
-                            type = ResourcePoolEntry.Type.TOP;
+        // The entries of the fallback files are added in the order of the input pool, and their content
+        // is only read when it is needed. If there is an executor, the hash values of the files and the
+        // uncompressed resources are verified in advance concurrently, without keeping the content.
+        List<Future<?>> verifications = new ArrayList<>();
+        try {
+            in.entries().forEach(resource -> {
+                String moduleName = resource.moduleName();
+                if (resource.path().equals("/" + moduleName + "/" + Main.FALLBACK_LIST_FILE_NAME)) {
+                    try {
+                        FallbackList list;
+                        try (InputStream input = resource.content()) {
+                            list = FallbackUtils.readFallbackList(input);
                         }
+                        DigestAlgorithm digestAlgorithm = list.getDigestAlgorithm();
+
+                        for (int index = 0; index < list.size(); index++) {
+                            String fileName = list.getPath(index);
+                            String hash = list.getHash(index);
+
+                            ResourcePoolEntry.Type type;
+                            if (fileName.startsWith(JmodUtils.SECTION_CLASSES + "/")) {
+                                type = ResourcePoolEntry.Type.CLASS_OR_RESOURCE;
+                            } else if (fileName.startsWith(JmodUtils.SECTION_CONF + "/")) {
+                                type = ResourcePoolEntry.Type.CONFIG;
+                            } else if (fileName.startsWith(JmodUtils.SECTION_INCLUDE + "/")) {
+                                type = ResourcePoolEntry.Type.HEADER_FILE;
+                            } else if (fileName.startsWith(JmodUtils.SECTION_LEGAL + "/")) {
+                                type = ResourcePoolEntry.Type.LEGAL_NOTICE;
+                            } else if (fileName.startsWith(JmodUtils.SECTION_MAN + "/")) {
+                                type = ResourcePoolEntry.Type.MAN_PAGE;
+                            } else if (fileName.startsWith(JmodUtils.SECTION_BIN)) {
+                                type = ResourcePoolEntry.Type.NATIVE_CMD;
+                            } else if (fileName.startsWith(JmodUtils.SECTION_LIB)) {
+                                type = ResourcePoolEntry.Type.NATIVE_LIB;
+                            } else {
+                                type = ResourcePoolEntry.Type.TOP;
+                            }
 
 
-                        String entryPath = type == ResourcePoolEntry.Type.CLASS_OR_RESOURCE
-                                ? "/" + moduleName + fileName.substring(JmodUtils.SECTION_CLASSES.length())
-                                : "/" + moduleName + "/" + fileName;
-
-                        if (in.findEntry(entryPath).isPresent()) {
-                            continue;
-                        }
+                            String entryPath = type == ResourcePoolEntry.Type.CLASS_OR_RESOURCE
+                                    ? "/" + moduleName + fileName.substring(JmodUtils.SECTION_CLASSES.length())
+                                    : "/" + moduleName + "/" + fileName;
 
-                        if (type == ResourcePoolEntry.Type.CLASS_OR_RESOURCE) {
-                            ImageLocation location = image.findLocation(moduleName, fileName.substring(JmodUtils.SECTION_CLASSES.length() + 1));
-                            if (location == null) {
-                                throw new FileNotFoundException(fileName);
+                            if (in.findEntry(entryPath).isPresent()) {
+                                continue;
                             }
 
+                            FallbackResourcePoolEntry entry = createEntry(moduleName, digestAlgorithm, fileName, hash, entryPath, type);
+                            out.add(entry);
+                            fallbackEntries.merge(moduleName, 1, Integer::sum);
                             if (hash != null) {
-                                String actualHash;
-                                try (InputStream i = image.getResourceStream(location)) {
-                                    actualHash = MessageDigestUtils.hash(i);
-                                }
-
-                                if (!hash.equals(actualHash)) {
-                                    throw new IOException(Messages.getMessage("error.mismatch.hash", fileName));
-                                }
+                                verifiedEntries.merge(moduleName, 1, Integer::sum);
                             }
-
-                            byte[] classContent;
-                            try (InputStream i = image.getResourceStream(location)) {
-                                classContent = i.readAllBytes();
+                            // A compressed resource is verified when it is read, so that it is only decompressed once
+                            if (executor != null && hash != null && !entry.isCompressed()) {
+                                verifications.add(executor.submit(() -> {
+                                    entry.verify();
+                                    return null;
+                                }));
                             }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                } else {
+                    out.add(resource);
+                }
+            });
 
-                            out.add(ResourcePoolEntry.create(entryPath, type, classContent));
-                        } else {
-                            Path runtimeFilePath = options.runtimePath.resolve(JmodUtils.mapToRuntimePath(fileName));
+            for (Future<?> verification : verifications) {
+                waitFor(verification);
+            }
+        } finally {
+            for (Future<?> verification : verifications) {
+                verification.cancel(false);
+            }
+        }
 
-                            if (!Files.isRegularFile(runtimeFilePath)) {
-                                throw new FileNotFoundException(runtimeFilePath.toString());
-                            }
+        return out.build();
+    }
 
-                            if (hash != null) {
-                                String actualHash = MessageDigestUtils.hash(runtimeFilePath);
-                                if (!hash.equals(actualHash)) {
-                                    throw new IOException(Messages.getMessage("error.mismatch.hash", fileName));
-                                }
-                            }
+    /**
+     * @return the number of files of the module that have been added from the runtime path
+     */
+    public int getFallbackEntries(String moduleName) {
+        return fallbackEntries.getOrDefault(moduleName, 0);
+    }
 
-                            out.add(ResourcePoolEntry.create(entryPath, type, runtimeFilePath));
-                        }
+    /**
+     * @return the number of files of the module that have been added from the runtime path and whose hash values are verified
+     */
+    public int getVerifiedEntries(String moduleName) {
+        return verifiedEntries.getOrDefault(moduleName, 0);
+    }
 
-                    }
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-            } else {
-                out.add(resource);
+    private FallbackResourcePoolEntry createEntry(String moduleName, DigestAlgorithm digestAlgorithm, String fileName, String hash,
+                                                  String entryPath, ResourcePoolEntry.Type type) throws IOException {
+        if (type == ResourcePoolEntry.Type.CLASS_OR_RESOURCE) {
+            ImageLocation location = images.get().findLocation(moduleName, fileName.substring(JmodUtils.SECTION_CLASSES.length() + 1));
+            if (location == null) {
+                throw new FileNotFoundException(fileName);
             }
-        });
 
-        return out.build();
+            return FallbackResourcePoolEntry.ofImage(moduleName, entryPath, fileName, hash, digestAlgorithm, digestCache, images, location);
+        } else {
+            Path runtimeFilePath = options.runtimePath.resolve(JmodUtils.mapToRuntimePath(fileName));
+
+            if (!Files.isRegularFile(runtimeFilePath)) {
+                throw new FileNotFoundException(runtimeFilePath.toString());
+            }
+
+            return FallbackResourcePoolEntry.ofFile(moduleName, entryPath, type, fileName, hash, digestAlgorithm, digestCache, runtimeFilePath);
+        }
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new UncheckedIOException(new IOException(cause));
+            }
+        }
     }
 }
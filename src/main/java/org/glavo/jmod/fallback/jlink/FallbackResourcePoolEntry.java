@@ -0,0 +1,178 @@
+package org.glavo.jmod.fallback.jlink;
+
+import jdk.internal.jimage.BasicImageReader;
+import jdk.internal.jimage.ImageLocation;
+import jdk.tools.jlink.plugin.ResourcePoolEntry;
+import org.glavo.jmod.fallback.util.DigestAlgorithm;
+import org.glavo.jmod.fallback.util.DigestCache;
+import org.glavo.jmod.fallback.util.ImageReaderPool;
+import org.glavo.jmod.fallback.util.Messages;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * An entry restored from the runtime path, whose content is only read when jlink reads it.
+ * <p>
+ * The hash value recorded in {@code fallback.list} is checked the first time the content is read,
+ * so entries dropped by later plugins are never read or verified.
+ */
+final class FallbackResourcePoolEntry implements ResourcePoolEntry {
+    private final String moduleName;
+    private final String path;
+    private final Type type;
+
+    private final String fileName;
+    private final String hash;
+    private final DigestAlgorithm digestAlgorithm;
+    private final DigestCache digestCache;
+
+    private final ImageReaderPool images;
+    private final ImageLocation location;
+    private final Path file;
+
+    private volatile boolean verified;
+
+    private FallbackResourcePoolEntry(String moduleName, String path, Type type,
+                                      String fileName, String hash, DigestAlgorithm digestAlgorithm, DigestCache digestCache,
+                                      ImageReaderPool images, ImageLocation location, Path file) {
+        this.moduleName = moduleName;
+        this.path = path;
+        this.type = type;
+        this.fileName = fileName;
+        this.hash = hash;
+        this.digestAlgorithm = digestAlgorithm;
+        this.digestCache = digestCache;
+        this.images = images;
+        this.location = location;
+        this.file = file;
+        this.verified = hash == null;
+    }
+
+    /**
+     * Creates an entry of a resource in the jimage.
+     */
+    static FallbackResourcePoolEntry ofImage(String moduleName, String path, String fileName, String hash,
+                                             DigestAlgorithm digestAlgorithm, DigestCache digestCache,
+                                             ImageReaderPool images, ImageLocation location) {
+        return new FallbackResourcePoolEntry(moduleName, path, Type.CLASS_OR_RESOURCE, fileName, hash, digestAlgorithm, digestCache,
+                images, Objects.requireNonNull(location), null);
+    }
+
+    /**
+     * Creates an entry of a file in the runtime path.
+     */
+    static FallbackResourcePoolEntry ofFile(String moduleName, String path, Type type, String fileName, String hash,
+                                            DigestAlgorithm digestAlgorithm, DigestCache digestCache, Path file) {
+        return new FallbackResourcePoolEntry(moduleName, path, type, fileName, hash, digestAlgorithm, digestCache,
+                null, null, Objects.requireNonNull(file));
+    }
+
+    /**
+     * @return whether the content is a compressed resource of the jimage, which has to be decompressed every time it is read
+     */
+    boolean isCompressed() {
+        return location != null && location.getCompressedSize() != 0;
+    }
+
+    /**
+     * Checks the hash value of the content without keeping the content.
+     */
+    void verify() throws IOException {
+        if (verified) {
+            return;
+        }
+
+        String actualHash = location != null
+                ? digestCache.hash(digestAlgorithm, images.get(), location)
+                : digestCache.hash(digestAlgorithm, file);
+        checkHash(actualHash);
+    }
+
+    private void checkHash(String actualHash) throws IOException {
+        if (!hash.equals(actualHash)) {
+            throw new IOException(Messages.getMessage("error.mismatch.hash", fileName));
+        }
+        verified = true;
+    }
+
+    @Override
+    public String moduleName() {
+        return moduleName;
+    }
+
+    @Override
+    public String path() {
+        return path;
+    }
+
+    @Override
+    public Type type() {
+        return type;
+    }
+
+    @Override
+    public long contentLength() {
+        if (location != null) {
+            return location.getUncompressedSize();
+        }
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public InputStream content() {
+        if (location != null) {
+            return new ByteArrayInputStream(contentBytes());
+        }
+        try {
+            verify();
+            return Files.newInputStream(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public byte[] contentBytes() {
+        if (location == null) {
+            return ResourcePoolEntry.super.contentBytes();
+        }
+        try {
+            BasicImageReader image = images.get();
+            byte[] content = image.getResource(location);
+            if (!verified) {
+                // The resource is hashed from the content that has been read, instead of being read again
+                checkHash(digestCache.hash(digestAlgorithm, location, ByteBuffer.wrap(content)));
+            }
+            return content;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void write(OutputStream out) {
+        if (location != null) {
+            ResourcePoolEntry.super.write(out);
+            return;
+        }
+        try {
+            verify();
+            Files.copy(file, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -2,119 +2,259 @@ package org.glavo.jmod.fallback.module;
 
 import jdk.internal.module.*;
 import org.glavo.jmod.fallback.Main;
+import org.glavo.jmod.fallback.util.DaemonThreadFactory;
+import org.glavo.jmod.fallback.util.FallbackList;
 import org.glavo.jmod.fallback.util.FallbackUtils;
+import org.glavo.jmod.fallback.util.ImageReaderPool;
+import org.glavo.jmod.fallback.util.InternalAccess;
 import org.glavo.jmod.fallback.util.JmodUtils;
+import org.glavo.jmod.fallback.util.Messages;
 import org.glavo.jmod.fallback.util.ModuleHashesUtils;
+import org.glavo.jmod.fallback.util.RawZipFile;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
-import java.lang.module.InvalidModuleDescriptorException;
 import java.lang.module.ModuleFinder;
 import java.lang.module.ModuleReader;
 import java.lang.module.ModuleReference;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Supplier;
 
-public class FallbackJModModuleFinder implements ModuleFinder {
+/**
+ * Finds the modules of fallback jmod files, and of ordinary jmod files.
+ * <p>
+ * The readers of the modules share the jmod files opened by the finder, and read the fallback files
+ * from the jimage of the runtime path. The finder must be closed after the modules have been read,
+ * the jimage is only closed if the finder opened it.
+ */
+public class FallbackJModModuleFinder implements ModuleFinder, Closeable {
+    static {
+        // Used by jlink, which has opened the jimage
+        InternalAccess.setModuleFinderFactory((images, entries, cacheDir) -> create(images, false, entries, cacheDir));
+    }
+
 
     private final Map<String, ModuleReference> modules;
+    private final ImageReaderPool ownedImages;
+    private final JmodArchivePool archives;
+    private final JmodDescriptorIndex descriptorIndex;
 
-    private FallbackJModModuleFinder(Map<String, ModuleReference> modules) {
+    private FallbackJModModuleFinder(Map<String, ModuleReference> modules, ImageReaderPool ownedImages,
+                                     JmodArchivePool archives, JmodDescriptorIndex descriptorIndex) {
         this.modules = modules;
+        this.ownedImages = ownedImages;
+        this.archives = archives;
+        this.descriptorIndex = descriptorIndex;
     }
 
-    private static Set<String> jmodPackages(Path classesDir, Map<String, String> fallbackList) {
-        HashSet<String> res = new HashSet<>();
-
-        SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                Path dir = file.getParent();
-                String fileName = file.getFileName().toString();
-                if (dir.equals(classesDir) && fileName.endsWith(".class") && !"module-info.class".equals(fileName)) {
-                    throw new InvalidModuleDescriptorException(file + " found in top-level directory"
-                            + " (unnamed package not allowed in module)");
-                }
-                String packageName = classesDir.relativize(dir).toString().replace('/', '.');
-                if (Checks.isPackageName(packageName)) {
-                    res.add(packageName);
+    /**
+     * Reads {@code module-info.class} of the jmod file, without opening its file system.
+     */
+    private static JmodDescriptorIndex.Entry scan(Path path, long size, long lastModifiedTime) throws IOException {
+        try (RawZipFile jmod = JmodUtils.openRaw(path)) {
+            RawZipFile.Entry moduleInfo = jmod.getEntry(FallbackJModModuleIndex.CLASSES_PREFIX + "module-info.class");
+            if (moduleInfo == null) {
+                throw new IOException(Messages.getMessage("error.missing.module_info", path));
+            }
+            return new JmodDescriptorIndex.Entry(size, lastModifiedTime, jmod.readAllBytes(moduleInfo), null);
+        }
+    }
+
+    /**
+     * Finds the packages of the module, for the module descriptors without the {@code ModulePackages} attribute.
+     */
+    private static Set<String> findPackages(Path path) throws IOException {
+        try (RawZipFile jmod = JmodUtils.openRaw(path)) {
+            RawZipFile.Entry listEntry = jmod.getEntry(FallbackJModModuleIndex.CLASSES_PREFIX + Main.FALLBACK_LIST_FILE_NAME);
+            FallbackList list;
+            if (listEntry != null) {
+                try (InputStream input = jmod.getInputStream(listEntry)) {
+                    list = FallbackUtils.readFallbackList(input);
                 }
-                return FileVisitResult.CONTINUE;
+            } else {
+                list = FallbackList.empty();
             }
-        };
+            return JmodPackages.find(jmod, list);
+        }
+    }
 
+    private static ModuleReference read(ImageReaderPool images, JmodArchivePool archives,
+                                        JmodDescriptorIndex descriptorIndex, Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModifiedTime = attributes.lastModifiedTime().toMillis();
+        String key = path.toAbsolutePath().normalize().toString();
 
-        try {
-            Files.walkFileTree(classesDir, visitor);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+        // The jmod file is only scanned if it is not indexed,
+        // it is opened by the archive pool when a reader is created
+        JmodDescriptorIndex.Entry entry = descriptorIndex.get(key, size, lastModifiedTime);
+        boolean indexed = entry != null;
+        if (!indexed) {
+            entry = scan(path, size, lastModifiedTime);
         }
 
-        for (String fileName : fallbackList.keySet()) {
-            if (fileName.startsWith(JmodUtils.SECTION_CLASSES + "/")) {
-                String fn = fileName.substring(JmodUtils.SECTION_CLASSES.length() + 1);
+        JmodDescriptorIndex.Entry finalEntry = entry;
+        ModuleInfo.Attributes attrs = ModuleInfo.read(ByteBuffer.wrap(entry.moduleInfo), () -> {
+            Set<String> packages = finalEntry.packages;
+            if (packages == null) {
+                try {
+                    packages = findPackages(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                finalEntry.packages = packages;
+                descriptorIndex.put(key, finalEntry);
+            }
+            return packages;
+        });
+        if (!indexed) {
+            descriptorIndex.put(key, entry);
+        }
 
-                int idx = fn.indexOf('/');
-                if (idx == -1 && fileName.endsWith(".class") && !"module-info.class".equals(fn)) {
-                    throw new InvalidModuleDescriptorException(fileName + " found in top-level directory" + " (unnamed package not allowed in module)");
+        FallbackJModModuleIndex index = new FallbackJModModuleIndex();
+        String moduleName = attrs.descriptor().name();
+        Supplier<ModuleReader> supplier = () -> {
+            JmodArchivePool.Archive archive = null;
+            try {
+                archive = archives.acquire(path);
+                return new FallbackJModModuleReader(moduleName, archive, index, images);
+            } catch (IOException e) {
+                if (archive != null) {
+                    try {
+                        archive.release();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
                 }
+                throw new UncheckedIOException(e);
+            }
+        };
+        // The JDK only checks a module against the hash recorded by the module that requires it,
+        // with the recorded algorithm (SHA-256), which hashes the content of every file.
+        // It cannot be derived from the hash values in fallback.list, so the fallback files are read as well.
+        ModuleHashes.HashSupplier hasher = (a) -> ModuleHashesUtils.computeHash(supplier, a);
+
+        return new ModuleReferenceImpl(attrs.descriptor(),
+                path.toUri(),
+                supplier,
+                null,
+                attrs.target(),
+                attrs.recordedHashes(),
+                hasher,
+                attrs.moduleResolution());
+    }
 
-                String packageName = fn.substring(0, idx).replace('/', '.');
-                res.add(packageName);
+    private static ModuleReference getReference(Future<ModuleReference> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
             }
         }
+    }
 
-        return res;
+    public static FallbackJModModuleFinder of(Path runtimePath, List<Path> entries) throws IOException {
+        return of(runtimePath, entries, null);
     }
 
-    private static ModuleReference read(Path runtimePath, Path path) throws IOException {
-        boolean succeed = false;
-        FileSystem fs = JmodUtils.open(path);
+    /**
+     * @param cacheDir the directory of the persistent index of the module descriptors, or {@code null} to scan every jmod file
+     */
+    public static FallbackJModModuleFinder of(Path runtimePath, List<Path> entries, Path cacheDir) throws IOException {
+        ImageReaderPool images = new ImageReaderPool(runtimePath.resolve("lib").resolve("modules"));
         try {
-            Path classes = fs.getPath("/", JmodUtils.SECTION_CLASSES).toAbsolutePath();
-
-            Map<String, String> list = FallbackUtils.readFallbackListOrEmpty(fs.getPath("/", Main.FALLBACK_LIST_FILE_NAME));
-            ModuleInfo.Attributes attrs;
-            try (InputStream input = Files.newInputStream(classes.resolve("module-info.class"))) {
-                attrs = ModuleInfo.read(input, () -> jmodPackages(classes, list));
+            return create(images, true, entries, cacheDir);
+        } catch (Throwable e) {
+            try {
+                images.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
             }
+            throw e;
+        }
+    }
 
-            Supplier<ModuleReader> supplier = () -> new FallbackJModModuleReader(runtimePath, fs, list);
-            ModuleHashes.HashSupplier hasher = (a) -> ModuleHashesUtils.computeHash(supplier, a);
+    private static FallbackJModModuleFinder create(ImageReaderPool images, boolean ownsImages,
+                                                   List<Path> entries, Path cacheDir) throws IOException {
+        // The index is written back when the finder is closed, so the packages found lazily are also recorded
+        JmodDescriptorIndex descriptorIndex = JmodDescriptorIndex.open(cacheDir);
+        JmodArchivePool archives = new JmodArchivePool(JmodArchivePool.DEFAULT_MAX_OPEN);
 
-            ModuleReference mref = new ModuleReferenceImpl(attrs.descriptor(),
-                    path.toUri(),
-                    supplier,
-                    null,
-                    attrs.target(),
-                    attrs.recordedHashes(),
-                    hasher,
-                    attrs.moduleResolution());
+        // The jmod files are scanned concurrently, the modules are added in the order of the entries
+        int threads = Math.min(entries.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = threads > 1
+                ? Executors.newFixedThreadPool(threads, new DaemonThreadFactory("fallback-jmod-finder"))
+                : null;
+        List<Future<ModuleReference>> refs = new ArrayList<>(entries.size());
+        boolean succeed = false;
+        try {
+            for (Path entry : entries) {
+                if (executor == null) {
+                    refs.add(CompletableFuture.completedFuture(read(images, archives, descriptorIndex, entry)));
+                } else {
+                    refs.add(executor.submit(() -> read(images, archives, descriptorIndex, entry)));
+                }
+            }
 
-            succeed = true;
-            return mref;
+            LinkedHashMap<String, ModuleReference> modules = new LinkedHashMap<>();
+            for (Future<ModuleReference> future : refs) {
+                ModuleReference ref = getReference(future);
+                String moduleName = ref.descriptor().name();
 
+                if (modules.putIfAbsent(moduleName, ref) != null) {
+                    throw new IllegalArgumentException(Messages.getMessage("error.repeat.module", moduleName));
+                }
+            }
+            FallbackJModModuleFinder finder = new FallbackJModModuleFinder(modules, ownsImages ? images : null, archives, descriptorIndex);
+            succeed = true;
+            return finder;
         } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
             if (!succeed) {
-                fs.close();
+                archives.close();
             }
         }
     }
 
-    public static FallbackJModModuleFinder of(Path runtimePath, List<Path> entries) throws IOException {
-        LinkedHashMap<String, ModuleReference> modules = new LinkedHashMap<>();
-        for (Path entry : entries) {
-            ModuleReference ref = read(runtimePath, entry);
-            String moduleName = ref.descriptor().name();
-
-            if (modules.putIfAbsent(moduleName, ref) != null) {
-                throw new IllegalArgumentException("Duplicate module " + moduleName);
+    /**
+     * Closes the jmod files opened for the readers, and writes the new entries of the descriptor index back.
+     * The modules cannot be read after the finder is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            archives.close();
+        } finally {
+            try {
+                descriptorIndex.close();
+            } finally {
+                if (ownedImages != null) {
+                    ownedImages.close();
+                }
             }
         }
-        return new FallbackJModModuleFinder(modules);
     }
 
     @Override
@@ -124,6 +264,6 @@ public class FallbackJModModuleFinder implements ModuleFinder {
 
     @Override
     public Set<ModuleReference> findAll() {
-        return new HashSet<>(modules.values());
+        return new LinkedHashSet<>(modules.values());
     }
 }
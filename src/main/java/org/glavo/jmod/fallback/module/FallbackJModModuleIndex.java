@@ -0,0 +1,90 @@
+package org.glavo.jmod.fallback.module;
+
+import org.glavo.jmod.fallback.Main;
+import org.glavo.jmod.fallback.util.FallbackList;
+import org.glavo.jmod.fallback.util.FallbackUtils;
+import org.glavo.jmod.fallback.util.JmodUtils;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The fallback list of a fallback jmod module, and the names of its files and directories,
+ * which are read once when the first reader of the module is created.
+ */
+final class FallbackJModModuleIndex {
+    static final String CLASSES_PREFIX = JmodUtils.SECTION_CLASSES + "/";
+
+    static final class Contents {
+        final FallbackList fallbackList;
+        final Set<String> jmodFiles;
+        final Set<String> jmodDirectories;
+
+        /**
+         * The directories that only contain files of the fallback list, ending with {@code /}.
+         */
+        final Set<String> fallbackDirectories;
+
+        private Contents(FallbackList fallbackList, Set<String> jmodFiles, Set<String> jmodDirectories, Set<String> fallbackDirectories) {
+            this.fallbackList = fallbackList;
+            this.jmodFiles = jmodFiles;
+            this.jmodDirectories = jmodDirectories;
+            this.fallbackDirectories = fallbackDirectories;
+        }
+    }
+
+    private Contents contents;
+
+    /**
+     * @param classesDir the classes section of the jmod file
+     */
+    synchronized Contents contents(Path classesDir) throws IOException {
+        if (contents != null) {
+            return contents;
+        }
+
+        FallbackList fallbackList = FallbackUtils.readFallbackListOrEmpty(classesDir.resolve(Main.FALLBACK_LIST_FILE_NAME));
+
+        Set<String> jmodFiles = new HashSet<>();
+        Set<String> jmodDirectories = new HashSet<>();
+        Files.walkFileTree(classesDir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(classesDir)) {
+                    jmodDirectories.add(classesDir.relativize(dir) + "/");
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = classesDir.relativize(file).toString();
+                if (!Main.FALLBACK_LIST_FILE_NAME.equals(name)) {
+                    jmodFiles.add(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        Set<String> fallbackDirectories = new HashSet<>();
+        for (int index = 0; index < fallbackList.size(); index++) {
+            String fileName = fallbackList.getPath(index);
+            if (fileName.startsWith(CLASSES_PREFIX)) {
+                int idx = fileName.lastIndexOf('/');
+                while (idx > CLASSES_PREFIX.length()) {
+                    String dir = fileName.substring(CLASSES_PREFIX.length(), idx + 1);
+                    if (jmodDirectories.contains(dir) || !fallbackDirectories.add(dir)) {
+                        break;
+                    }
+                    idx = fileName.lastIndexOf('/', idx - 1);
+                }
+            }
+        }
+
+        contents = new Contents(fallbackList, Set.copyOf(jmodFiles), Set.copyOf(jmodDirectories), Set.copyOf(fallbackDirectories));
+        return contents;
+    }
+}
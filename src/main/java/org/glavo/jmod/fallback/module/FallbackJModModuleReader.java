@@ -1,32 +1,63 @@
 package org.glavo.jmod.fallback.module;
 
+import jdk.internal.jimage.BasicImageReader;
+import jdk.internal.jimage.ImageLocation;
+import org.glavo.jmod.fallback.util.FallbackList;
+import org.glavo.jmod.fallback.util.ImageReaderPool;
 import org.glavo.jmod.fallback.util.JmodUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.module.ModuleReader;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+/**
+ * A reader of a fallback jmod file. The files in the jmod file are found in it,
+ * and the files recorded in {@code fallback.list} are found in the jimage of the runtime.
+ * <p>
+ * The names of the files and directories are indexed once for the module,
+ * so lookups do not access the file system and do not need to lock.
+ * The files in the jimage are read as it is done for {@code lib/modules}: {@link #read(String)} returns
+ * the memory-mapped content of uncompressed resources without copying it, and their hash values are not verified.
+ */
 public class FallbackJModModuleReader implements ModuleReader {
-
-    private final Path runtimePath;
-    private final FileSystem fs;
-    private final Map<String, String> fallbackList;
-
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private boolean closed = false;
-
-    public FallbackJModModuleReader(Path runtimePath, FileSystem fs, Map<String, String> fallbackList) {
-        this.runtimePath = runtimePath;
-        this.fs = fs;
-        this.fallbackList = fallbackList;
+    private static final String CLASSES_PREFIX = FallbackJModModuleIndex.CLASSES_PREFIX;
+
+    private final String moduleName;
+    private final JmodArchivePool.Archive archive;
+    private final Path classesDir;
+    private final FallbackList fallbackList;
+    private final ImageReaderPool images;
+
+    private final Set<String> jmodFiles;
+    private final Set<String> jmodDirectories;
+    private final Set<String> fallbackDirectories;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param archive the acquired jmod file, which is released when the reader is closed
+     */
+    FallbackJModModuleReader(String moduleName, JmodArchivePool.Archive archive,
+                             FallbackJModModuleIndex index, ImageReaderPool images) throws IOException {
+        this.moduleName = moduleName;
+        this.archive = archive;
+        this.classesDir = archive.getFileSystem().getPath("/", JmodUtils.SECTION_CLASSES);
+        this.images = images;
+
+        FallbackJModModuleIndex.Contents contents = index.contents(classesDir);
+        this.fallbackList = contents.fallbackList;
+        this.jmodFiles = contents.jmodFiles;
+        this.jmodDirectories = contents.jmodDirectories;
+        this.fallbackDirectories = contents.fallbackDirectories;
     }
 
     private void ensureOpen() throws IOException {
@@ -35,79 +66,105 @@ public class FallbackJModModuleReader implements ModuleReader {
         }
     }
 
-    private Path findPath(String name) {
-        boolean expectDirectory = name.endsWith("/");
-
-        String fileName = JmodUtils.SECTION_CLASSES + "/" + name;
-        Path path = fs.getPath("/", fileName);
-        if (!Files.exists(path)) {
-            if (expectDirectory) {
-                if (fallbackList.keySet().stream().allMatch(it -> it.startsWith(fileName))) {
-                    path = runtimePath.resolve(JmodUtils.mapToRuntimePath(fileName));
-                }
-            } else {
-                if (fallbackList.containsKey(name)) {
-                    path = runtimePath.resolve(JmodUtils.mapToRuntimePath(name));
-                }
-            }
+    private URI runtimeUri(String name) throws IOException {
+        try {
+            return new URI("jrt", null, "/" + moduleName + "/" + name, null);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
         }
-        return Files.exists(path) && (!expectDirectory || Files.isDirectory(path)) ? path : null;
     }
 
-
     @Override
     public Optional<URI> find(String name) throws IOException {
-        lock.readLock().lock();
-        try {
-            ensureOpen();
-            return Optional.ofNullable(findPath(name)).map(Path::toUri);
-        } finally {
-            lock.readLock().unlock();
+        ensureOpen();
+
+        if (name.endsWith("/")) {
+            if (jmodDirectories.contains(name)) {
+                return Optional.of(classesDir.resolve(name).toUri());
+            }
+            if (fallbackDirectories.contains(name)) {
+                return Optional.of(runtimeUri(name));
+            }
+        } else {
+            if (jmodFiles.contains(name)) {
+                return Optional.of(classesDir.resolve(name).toUri());
+            }
+            if (fallbackList.contains(CLASSES_PREFIX + name)) {
+                return Optional.of(runtimeUri(name));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the location of the file in the jimage, or {@code null} if it is not a file of the fallback list
+     */
+    private ImageLocation findLocation(BasicImageReader image, String name) throws IOException {
+        if (name.endsWith("/") || !fallbackList.contains(CLASSES_PREFIX + name)) {
+            return null;
+        }
+
+        ImageLocation location = image.findLocation(moduleName, name);
+        if (location == null) {
+            throw new NoSuchFileException(runtimeUri(name).toString());
         }
+        return location;
     }
 
     @Override
-    public Stream<String> list() throws IOException {
-        lock.readLock().lock();
-        try {
-            ensureOpen();
+    public Optional<InputStream> open(String name) throws IOException {
+        ensureOpen();
 
-            HashSet<String> res = new HashSet<>();
+        if (jmodFiles.contains(name)) {
+            return Optional.of(Files.newInputStream(classesDir.resolve(name)));
+        }
 
-            for (String fileName : fallbackList.keySet()) {
-                if (fileName.startsWith(JmodUtils.SECTION_CLASSES + "/")) {
-                    res.add(fileName.substring(JmodUtils.SECTION_CLASSES.length() + 1));
-                }
-            }
+        BasicImageReader image = images.get();
+        ImageLocation location = findLocation(image, name);
+        return location != null ? Optional.of(new ByteArrayInputStream(image.getResource(location))) : Optional.empty();
+    }
 
-            Path classesDir = fs.getPath("/", JmodUtils.SECTION_CLASSES);
+    @Override
+    public Optional<ByteBuffer> read(String name) throws IOException {
+        ensureOpen();
 
-            SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    res.add(classesDir.relativize(file).toString());
-                    return FileVisitResult.CONTINUE;
-                }
-            };
+        if (jmodFiles.contains(name)) {
+            return Optional.of(ByteBuffer.wrap(Files.readAllBytes(classesDir.resolve(name))));
+        }
 
-            Files.walkFileTree(classesDir, visitor);
-            return res.stream();
+        BasicImageReader image = images.get();
+        ImageLocation location = findLocation(image, name);
+        return location != null ? Optional.of(image.getResourceBuffer(location)) : Optional.empty();
+    }
 
-        } finally {
-            lock.readLock().unlock();
+    @Override
+    public void release(ByteBuffer buffer) {
+        // Only the buffers of the jimage are direct, the buffers of the jmod file are on the heap
+        if (buffer.isDirect()) {
+            BasicImageReader.releaseByteBuffer(buffer);
         }
     }
 
     @Override
-    public void close() throws IOException {
-        lock.writeLock().lock();
-        try {
-            if (!closed) {
-                closed = true;
-                fs.close();
-            }
-        } finally {
-            lock.writeLock().unlock();
+    public Stream<String> list() throws IOException {
+        ensureOpen();
+
+        Stream<String> fallbackFiles = IntStream.range(0, fallbackList.size())
+                .mapToObj(fallbackList::getPath)
+                .filter(fileName -> fileName.startsWith(CLASSES_PREFIX))
+                .map(fileName -> fileName.substring(CLASSES_PREFIX.length()))
+                .filter(name -> !jmodFiles.contains(name));
+        return Stream.concat(jmodFiles.stream(), fallbackFiles);
+    }
+
+    /**
+     * Closes this reader and releases the jmod file, which stays open while other readers of the module use it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            archive.release();
         }
     }
 }
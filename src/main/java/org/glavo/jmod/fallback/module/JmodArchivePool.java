@@ -0,0 +1,116 @@
+package org.glavo.jmod.fallback.module;
+
+import org.glavo.jmod.fallback.util.JmodUtils;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The jmod files opened for the readers of a {@link FallbackJModModuleFinder}.
+ * <p>
+ * A jmod file is opened when a reader of its module is created, and is shared by the readers of the module.
+ * When more than {@code maxOpen} files are open, the least recently used files that are not used by any reader are closed.
+ */
+final class JmodArchivePool {
+    static final int DEFAULT_MAX_OPEN = Integer.getInteger("org.glavo.jmod.fallback.maxOpenArchives", 64);
+
+    final class Archive {
+        private final Path path;
+        private final FileSystem fs;
+        private int references = 0;
+
+        private Archive(Path path, FileSystem fs) {
+            this.path = path;
+            this.fs = fs;
+        }
+
+        FileSystem getFileSystem() {
+            return fs;
+        }
+
+        /**
+         * Releases the archive acquired by {@link #acquire(Path)}.
+         */
+        void release() throws IOException {
+            JmodArchivePool.this.release(this);
+        }
+    }
+
+    private final int maxOpen;
+    private final LinkedHashMap<Path, Archive> archives = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean closed = false;
+
+    JmodArchivePool(int maxOpen) {
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Opens the jmod file, or reuses it if it is already open. The archive must be released after use.
+     */
+    synchronized Archive acquire(Path path) throws IOException {
+        if (closed) {
+            throw new IOException("JmodArchivePool is closed");
+        }
+        Archive archive = archives.get(path);
+        if (archive == null) {
+            archive = new Archive(path, JmodUtils.open(path));
+            archives.put(path, archive);
+        }
+        archive.references++;
+        evict();
+        return archive;
+    }
+
+    private synchronized void release(Archive archive) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (archive.references <= 0) {
+            throw new IllegalStateException("Archive " + archive.path + " is not acquired");
+        }
+        archive.references--;
+        evict();
+    }
+
+    private void evict() throws IOException {
+        Iterator<Archive> it = archives.values().iterator();
+        while (archives.size() > maxOpen && it.hasNext()) {
+            Archive archive = it.next();
+            if (archive.references == 0) {
+                it.remove();
+                archive.fs.close();
+            }
+        }
+    }
+
+    /**
+     * Closes all jmod files, including the ones that are still used by readers.
+     */
+    synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        IOException exception = null;
+        for (Archive archive : archives.values()) {
+            try {
+                archive.fs.close();
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+        archives.clear();
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
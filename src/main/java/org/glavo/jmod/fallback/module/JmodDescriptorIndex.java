@@ -0,0 +1,211 @@
+package org.glavo.jmod.fallback.module;
+
+import org.glavo.jmod.fallback.Main;
+import org.glavo.jmod.fallback.util.FileLockUtils;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent index of the module descriptors of the jmod files, so the finders created in later runs
+ * do not scan the jmod files again.
+ * <p>
+ * Each jmod file is keyed by its absolute path, and its entry is only used if the size and last modified time
+ * of the file have not changed. The entry holds the content of {@code module-info.class},
+ * and the packages of the module if they are not recorded in the descriptor.
+ * <p>
+ * The index file is loaded once when the index is opened, and new entries are written back when it is closed,
+ * in the same way as {@link org.glavo.jmod.fallback.util.DigestCache}. The entries of the jmod files that no longer exist are dropped then.
+ * <p>
+ * A disabled index (see {@link #disabled()}) never finds an entry.
+ */
+final class JmodDescriptorIndex implements Closeable {
+    private static final int MAGIC = 0x464a4449; // FJDI
+    private static final int VERSION = 1;
+
+    private static final String INDEX_FILE_NAME = "jmods.index";
+
+    static final class Entry {
+        final long size;
+        final long lastModifiedTime;
+        final byte[] moduleInfo;
+
+        /**
+         * The packages of the module, or {@code null} if they are recorded in the descriptor.
+         */
+        volatile Set<String> packages;
+
+        Entry(long size, long lastModifiedTime, byte[] moduleInfo, Set<String> packages) {
+            this.size = size;
+            this.lastModifiedTime = lastModifiedTime;
+            this.moduleInfo = moduleInfo;
+            this.packages = packages;
+        }
+    }
+
+    private static final JmodDescriptorIndex DISABLED = new JmodDescriptorIndex(null);
+
+    private final Path indexFile;
+    private Map<String, Entry> entries = Map.of();
+    private final Map<String, Entry> newEntries = new ConcurrentHashMap<>();
+
+    private JmodDescriptorIndex(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    static JmodDescriptorIndex disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Opens the index in the cache directory.
+     *
+     * @param cacheDir the cache directory, or {@code null} to return a disabled index
+     */
+    static JmodDescriptorIndex open(Path cacheDir) throws IOException {
+        if (cacheDir == null) {
+            return DISABLED;
+        }
+
+        Files.createDirectories(cacheDir);
+        JmodDescriptorIndex index = new JmodDescriptorIndex(cacheDir.resolve(INDEX_FILE_NAME));
+        index.entries = index.load();
+        return index;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * @return the entries of the index file, or an empty map if it does not exist or is corrupted
+     */
+    private Map<String, Entry> load() throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(indexFile);
+        } catch (NoSuchFileException e) {
+            return new HashMap<>();
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Main.printDebugMessage(() -> "Discard descriptor index: " + indexFile);
+                return new HashMap<>();
+            }
+
+            int count = buffer.getInt();
+            Map<String, Entry> res = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                String path = readString(buffer);
+                long size = buffer.getLong();
+                long lastModifiedTime = buffer.getLong();
+
+                byte[] moduleInfo = new byte[buffer.getInt()];
+                buffer.get(moduleInfo);
+
+                Set<String> packages = null;
+                int packageCount = buffer.getInt();
+                if (packageCount >= 0) {
+                    String[] names = new String[packageCount];
+                    for (int j = 0; j < packageCount; j++) {
+                        names[j] = readString(buffer);
+                    }
+                    packages = Set.of(names);
+                }
+
+                res.put(path, new Entry(size, lastModifiedTime, moduleInfo, packages));
+            }
+            return res;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            Main.printDebugMessage(() -> "Corrupted descriptor index: " + indexFile);
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * @return the entry of the jmod file, or {@code null} if there is no entry of its current size and last modified time
+     */
+    Entry get(String path, long size, long lastModifiedTime) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.size != size || entry.lastModifiedTime != lastModifiedTime) {
+            entry = newEntries.get(path);
+        }
+        return entry != null && entry.size == size && entry.lastModifiedTime == lastModifiedTime ? entry : null;
+    }
+
+    void put(String path, Entry entry) {
+        if (indexFile != null) {
+            newEntries.put(path, entry);
+        }
+    }
+
+    /**
+     * Writes the new entries back to the index file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (indexFile == null || newEntries.isEmpty()) {
+            return;
+        }
+
+        Path lockFile = indexFile.resolveSibling(indexFile.getFileName() + ".lock");
+        FileLockUtils.withLock(lockFile, () -> {
+            // Keep the entries written by other processes since this index was opened
+            Map<String, Entry> current = load();
+            current.putAll(newEntries);
+            current.keySet().removeIf(path -> !Files.exists(Paths.get(path)));
+
+            Path tempFile = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(VERSION);
+                    output.writeInt(current.size());
+                    for (Map.Entry<String, Entry> e : current.entrySet()) {
+                        Entry entry = e.getValue();
+                        writeString(output, e.getKey());
+                        output.writeLong(entry.size);
+                        output.writeLong(entry.lastModifiedTime);
+                        output.writeInt(entry.moduleInfo.length);
+                        output.write(entry.moduleInfo);
+
+                        Set<String> packages = entry.packages;
+                        if (packages == null) {
+                            output.writeInt(-1);
+                        } else {
+                            output.writeInt(packages.size());
+                            for (String packageName : packages) {
+                                writeString(output, packageName);
+                            }
+                        }
+                    }
+                }
+
+                try {
+                    Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        });
+
+        newEntries.clear();
+    }
+}
@@ -0,0 +1,70 @@
+package org.glavo.jmod.fallback.module;
+
+import jdk.internal.module.Checks;
+import org.glavo.jmod.fallback.util.FallbackList;
+import org.glavo.jmod.fallback.util.RawZipFile;
+
+import java.lang.module.InvalidModuleDescriptorException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds the packages of the module, for the module descriptors without the {@code ModulePackages} attribute.
+ * <p>
+ * The packages are found from the names of the entries in the central directory of the jmod file
+ * and the files of the fallback list, without opening the file system of the jmod file.
+ * They are not cached here, the finder records them in its {@link JmodDescriptorIndex},
+ * which keeps them in the cache directory if there is one.
+ */
+final class JmodPackages {
+    private static final String CLASSES_PREFIX = FallbackJModModuleIndex.CLASSES_PREFIX;
+
+    private final Set<String> packages = new HashSet<>();
+
+    /**
+     * The directory of the last file, the files of a directory are usually adjacent.
+     */
+    private String lastDir;
+
+    private JmodPackages() {
+    }
+
+    static Set<String> find(RawZipFile jmod, FallbackList fallbackList) {
+        JmodPackages finder = new JmodPackages();
+        for (RawZipFile.Entry entry : jmod.entries()) {
+            if (!entry.isDirectory()) {
+                finder.add(entry.getName());
+            }
+        }
+        for (int index = 0; index < fallbackList.size(); index++) {
+            finder.add(fallbackList.getPath(index));
+        }
+
+        return Set.copyOf(finder.packages);
+    }
+
+    private void add(String fileName) {
+        if (!fileName.startsWith(CLASSES_PREFIX)) {
+            return;
+        }
+
+        int idx = fileName.lastIndexOf('/');
+        if (idx < CLASSES_PREFIX.length()) {
+            if (fileName.endsWith(".class") && !(CLASSES_PREFIX + "module-info.class").equals(fileName)) {
+                throw new InvalidModuleDescriptorException(fileName + " found in top-level directory"
+                        + " (unnamed package not allowed in module)");
+            }
+            return;
+        }
+
+        if (lastDir != null && lastDir.length() == idx && fileName.startsWith(lastDir)) {
+            return;
+        }
+        lastDir = fileName.substring(0, idx);
+
+        String packageName = lastDir.substring(CLASSES_PREFIX.length()).replace('/', '.');
+        if (Checks.isPackageName(packageName)) {
+            packages.add(packageName);
+        }
+    }
+}
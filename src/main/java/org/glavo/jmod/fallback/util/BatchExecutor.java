@@ -0,0 +1,116 @@
+package org.glavo.jmod.fallback.util;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs one task per jmod file on a bounded worker pool.
+ * <p>
+ * Besides the number of workers, the sum of the sizes of the jmod files being processed at the same time
+ * is limited to {@code maxInFlightBytes}, so that a few large modules do not run concurrently and exhaust the heap.
+ * A file larger than the whole budget is processed alone.
+ * <p>
+ * A failed task never stops the batch: its exception is passed to the failure handler and the other tasks go on.
+ */
+public final class BatchExecutor {
+    public interface Task {
+        void run(Path source, Path target) throws Exception;
+    }
+
+    private static final int PERMIT_UNIT = 1024;
+
+    private final int jobs;
+    private final int maxPermits;
+
+    public BatchExecutor(int jobs, long maxInFlightBytes) {
+        if (jobs < 1) {
+            throw new IllegalArgumentException("jobs: " + jobs);
+        }
+        if (maxInFlightBytes < 1) {
+            throw new IllegalArgumentException("maxInFlightBytes: " + maxInFlightBytes);
+        }
+        this.jobs = jobs;
+        this.maxPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxInFlightBytes / PERMIT_UNIT));
+    }
+
+    public int getJobs() {
+        return jobs;
+    }
+
+    /**
+     * @return the number of failed tasks
+     */
+    public int run(Map<Path, Path> files, Task task, BiConsumer<Path, Throwable> failureHandler) {
+        if (jobs == 1 || files.size() <= 1) {
+            int failures = 0;
+            for (Map.Entry<Path, Path> entry : files.entrySet()) {
+                if (!runTask(task, entry.getKey(), entry.getValue(), failureHandler)) {
+                    failures++;
+                }
+            }
+            return failures;
+        }
+
+        Semaphore budget = new Semaphore(maxPermits, true);
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, files.size()), new DaemonThreadFactory("fallback-jmod-worker"));
+        try {
+            List<Future<?>> futures = new ArrayList<>(files.size());
+            for (Map.Entry<Path, Path> entry : files.entrySet()) {
+                Path source = entry.getKey();
+                Path target = entry.getValue();
+                futures.add(executor.submit(() -> {
+                    int permits = permitsFor(source);
+                    budget.acquireUninterruptibly(permits);
+                    try {
+                        if (!runTask(task, source, target, failureHandler)) {
+                            failures.incrementAndGet();
+                        }
+                    } finally {
+                        budget.release(permits);
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new AssertionError(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures.get();
+    }
+
+    private int permitsFor(Path source) {
+        long size;
+        try {
+            size = Files.size(source);
+        } catch (Throwable e) {
+            size = 0; // Let the task itself report the problem
+        }
+        return (int) Math.min(maxPermits, Math.max(1, size / PERMIT_UNIT));
+    }
+
+    private static boolean runTask(Task task, Path source, Path target, BiConsumer<Path, Throwable> failureHandler) {
+        try {
+            task.run(source, target);
+            return true;
+        } catch (Throwable e) {
+            failureHandler.accept(source, e);
+            return false;
+        }
+    }
+}
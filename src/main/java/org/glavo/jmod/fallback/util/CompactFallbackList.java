@@ -0,0 +1,244 @@
+package org.glavo.jmod.fallback.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A fallback list read from the text format, records are in the order of the file.
+ * <p>
+ * The records are kept in primitive arrays instead of strings: the directory prefixes of the paths are interned,
+ * the file names are packed into one UTF-8 byte array and the digests are packed into another byte array.
+ * Paths and hash values are only decoded when they are requested.
+ * Lookup by path is a binary search over the record indexes sorted by prefix and then by name.
+ */
+final class CompactFallbackList extends FallbackList {
+    private final DigestAlgorithm digestAlgorithm;
+    private final int digestLength;
+    private final int count;
+
+    private final String[] prefixes;
+    private final Map<String, Integer> prefixIndexes;
+    private final int[] recordPrefixes;
+    private final int[] nameOffsets;
+    private final byte[] names;
+    private final byte[] digests;
+    private final BitSet verified;
+
+    /**
+     * The record indexes sorted by prefix and then by name.
+     */
+    private final int[] sorted;
+
+    private CompactFallbackList(Builder builder, int[] sorted) {
+        this.digestAlgorithm = builder.digestAlgorithm;
+        this.digestLength = builder.digestLength;
+        this.count = builder.count;
+        this.prefixes = builder.prefixes.toArray(new String[0]);
+        this.prefixIndexes = builder.prefixIndexes;
+        this.recordPrefixes = Arrays.copyOf(builder.recordPrefixes, count);
+        this.nameOffsets = Arrays.copyOf(builder.nameOffsets, count + 1);
+        this.names = Arrays.copyOf(builder.names, builder.nameOffsets[count]);
+        this.digests = Arrays.copyOf(builder.digests, count * digestLength);
+        this.verified = builder.verified;
+        this.sorted = sorted;
+    }
+
+    static CompactFallbackList empty(DigestAlgorithm digestAlgorithm) {
+        return new CompactFallbackList(new Builder(digestAlgorithm), new int[0]);
+    }
+
+    @Override
+    public DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public String getPath(int index) {
+        Objects.checkIndex(index, count);
+        return prefixes[recordPrefixes[index]]
+                + new String(names, nameOffsets[index], nameOffsets[index + 1] - nameOffsets[index], StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String getHash(int index) {
+        Objects.checkIndex(index, count);
+        if (!verified.get(index)) {
+            return null;
+        }
+        return MessageDigestUtils.toHexString(Arrays.copyOfRange(digests, index * digestLength, (index + 1) * digestLength));
+    }
+
+    @Override
+    public int indexOf(String path) {
+        int nameStart = path.lastIndexOf('/') + 1;
+        Integer prefixIndex = prefixIndexes.get(path.substring(0, nameStart));
+        if (prefixIndex == null) {
+            return -1;
+        }
+        byte[] name = path.substring(nameStart).getBytes(StandardCharsets.UTF_8);
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = sorted[mid];
+            int c = compare(recordPrefixes[record], record, prefixIndex, name);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(int recordPrefix, int record, int prefixIndex, byte[] name) {
+        if (recordPrefix != prefixIndex) {
+            return prefixes[recordPrefix].compareTo(prefixes[prefixIndex]);
+        }
+        int offset = nameOffsets[record];
+        return Arrays.compareUnsigned(names, offset, nameOffsets[record + 1], name, 0, name.length);
+    }
+
+    /**
+     * Collects the records one by one while the list is being parsed.
+     */
+    static final class Builder {
+        private final DigestAlgorithm digestAlgorithm;
+        private final int digestLength;
+
+        private final List<String> prefixes = new ArrayList<>();
+        private final Map<String, Integer> prefixIndexes = new HashMap<>();
+        private int count = 0;
+        private int[] recordPrefixes = new int[64];
+        private int[] nameOffsets = new int[65];
+        private byte[] names = new byte[1024];
+        private byte[] digests;
+        private final BitSet verified = new BitSet();
+
+        Builder(DigestAlgorithm digestAlgorithm) {
+            this.digestAlgorithm = digestAlgorithm;
+            this.digestLength = digestAlgorithm.getDigestLength();
+            this.digests = new byte[64 * digestLength];
+        }
+
+        /**
+         * Adds a record, the path must have been checked by the caller.
+         *
+         * @param hash the lowercase hex hash value, or {@code null} if the file is not verified
+         */
+        void add(String path, String hash) {
+            if (count == recordPrefixes.length) {
+                int newLength = count * 2;
+                recordPrefixes = Arrays.copyOf(recordPrefixes, newLength);
+                nameOffsets = Arrays.copyOf(nameOffsets, newLength + 1);
+                digests = Arrays.copyOf(digests, newLength * digestLength);
+            }
+
+            int nameStart = path.lastIndexOf('/') + 1;
+            String prefix = path.substring(0, nameStart);
+            Integer prefixIndex = prefixIndexes.get(prefix);
+            if (prefixIndex == null) {
+                prefixIndex = prefixes.size();
+                prefixes.add(prefix);
+                prefixIndexes.put(prefix, prefixIndex);
+            }
+
+            byte[] name = path.substring(nameStart).getBytes(StandardCharsets.UTF_8);
+            int nameOffset = nameOffsets[count];
+            if (nameOffset + name.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, nameOffset + name.length));
+            }
+            System.arraycopy(name, 0, names, nameOffset, name.length);
+
+            recordPrefixes[count] = prefixIndex;
+            nameOffsets[count + 1] = nameOffset + name.length;
+            if (hash != null) {
+                System.arraycopy(MessageDigestUtils.parseHexString(hash), 0, digests, count * digestLength, digestLength);
+                verified.set(count);
+            }
+            count++;
+        }
+
+        private int compare(int record1, int record2) {
+            int prefix1 = recordPrefixes[record1];
+            int prefix2 = recordPrefixes[record2];
+            if (prefix1 != prefix2) {
+                return prefixes.get(prefix1).compareTo(prefixes.get(prefix2));
+            }
+            return Arrays.compareUnsigned(
+                    names, nameOffsets[record1], nameOffsets[record1 + 1],
+                    names, nameOffsets[record2], nameOffsets[record2 + 1]);
+        }
+
+        private boolean sameDigest(int record1, int record2) {
+            return Arrays.equals(
+                    digests, record1 * digestLength, (record1 + 1) * digestLength,
+                    digests, record2 * digestLength, (record2 + 1) * digestLength);
+        }
+
+        /**
+         * Builds the list. If a path occurs more than once, it is kept at the position of its first record,
+         * with the hash value of its first verified record, so a verified record takes precedence over an unverified one.
+         * It is an error if two of the verified records have different hash values.
+         */
+        CompactFallbackList build() throws IOException {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            // The sort is stable, so records with the same path are in the order of the file
+            Arrays.sort(order, this::compare);
+
+            int[] sorted = new int[count];
+            BitSet duplicates = null;
+            int first = -1;
+            int firstVerified = -1;
+            for (int i = 0; i < count; i++) {
+                int record = order[i];
+                if (first >= 0 && compare(first, record) == 0) {
+                    if (verified.get(record)) {
+                        if (firstVerified < 0) {
+                            firstVerified = record;
+                            System.arraycopy(digests, record * digestLength, digests, first * digestLength, digestLength);
+                            verified.set(first);
+                        } else if (!sameDigest(firstVerified, record)) {
+                            CompactFallbackList list = new CompactFallbackList(this, sorted);
+                            throw new IOException(Messages.getMessage("error.conflict.record",
+                                    list.getPath(record), list.getHash(record), list.getHash(firstVerified)));
+                        }
+                    }
+                    if (duplicates == null) {
+                        duplicates = new BitSet(count);
+                    }
+                    duplicates.set(record);
+                } else {
+                    first = record;
+                    firstVerified = verified.get(record) ? record : -1;
+                }
+                sorted[i] = record;
+            }
+
+            if (duplicates == null) {
+                return new CompactFallbackList(this, sorted);
+            }
+
+            CompactFallbackList list = new CompactFallbackList(this, sorted);
+            Builder builder = new Builder(digestAlgorithm);
+            for (int i = 0; i < count; i++) {
+                if (!duplicates.get(i)) {
+                    builder.add(list.getPath(i), list.getHash(i));
+                }
+            }
+            return builder.build();
+        }
+    }
+}
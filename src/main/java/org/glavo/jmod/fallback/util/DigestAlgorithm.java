@@ -0,0 +1,76 @@
+package org.glavo.jmod.fallback.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The algorithms that can be used to compute the hash values recorded in {@code fallback.list}.
+ */
+public enum DigestAlgorithm {
+    SHA_256("SHA-256", 32),
+    SHA_512_256("SHA-512/256", 32),
+    /**
+     * A fast non-cryptographic hash, only suitable for trusted pipelines.
+     */
+    MURMUR3_128("Murmur3-128", 16);
+
+    private final String name;
+    private final int digestLength;
+
+    DigestAlgorithm(String name, int digestLength) {
+        this.name = name;
+        this.digestLength = digestLength;
+    }
+
+    /**
+     * @return the algorithm with the given name (case-insensitive), or {@code null} if it is not supported
+     */
+    public static DigestAlgorithm of(String name) {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the length of the digest in bytes
+     */
+    public int getDigestLength() {
+        return digestLength;
+    }
+
+    public MessageDigest newMessageDigest() {
+        if (this == MURMUR3_128) {
+            return new Murmur3MessageDigest();
+        }
+
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return whether the string is a lowercase hex digest of this algorithm
+     */
+    public boolean isValidHash(String hash) {
+        if (hash.length() != digestLength * 2) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char ch = hash.charAt(i);
+            if ((ch < '0' || ch > '9') && (ch < 'a' || ch > 'f')) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
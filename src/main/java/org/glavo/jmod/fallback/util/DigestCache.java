@@ -0,0 +1,406 @@
+package org.glavo.jmod.fallback.util;
+
+import jdk.internal.jimage.BasicImageReader;
+import jdk.internal.jimage.ImageLocation;
+import org.glavo.jmod.fallback.Main;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of the hash values of the jimage resources and the files in a runtime path.
+ * <p>
+ * Each runtime path has its own cache file, named after the real path of its jimage file.
+ * The cache file records the size and last modified time of the jimage file, if the jimage file has changed,
+ * the whole cache is discarded. Jimage resources are keyed by their full name, which contains the module name
+ * ({@code /java.base/java/lang/Object.class}). The offset of the content does not identify a resource:
+ * jlink places an empty resource at the offset of the next resource.
+ * Other files are keyed by their path relative to the runtime path, size and last modified time.
+ * <p>
+ * The cache file is loaded once when the cache is opened, and new hash values are written back when it is closed.
+ * Writing is done under a file lock: the cache file is read again, merged with the new hash values,
+ * written to a temporary file and then moved over the cache file, so several processes can share a cache directory,
+ * and readers never see a partially written file.
+ * <p>
+ * A disabled cache (see {@link #disabled()}) computes every hash value,
+ * and an in-memory cache (see {@link #inMemory(Path, Path)}) keeps the hash values only as long as it is used.
+ */
+public final class DigestCache implements Closeable {
+    private static final int MAGIC = 0x464a4443; // FJDC
+    private static final int VERSION = 2;
+
+    private static final String CRC32 = "CRC-32";
+
+    /**
+     * The hash values of each algorithm are kept in separate tables, indexed by the ordinal of the algorithm.
+     * The last table holds the CRC-32 values.
+     */
+    private static final int CRC32_KIND = DigestAlgorithm.values().length;
+    private static final int KINDS = CRC32_KIND + 1;
+
+    private static final DigestCache DISABLED = new DigestCache(false, null, null, 0, 0, null);
+
+    private final boolean enabled;
+    private final Path cacheFile;
+    private final Path runtimePath;
+    private final long jimageSize;
+    private final long jimageLastModifiedTime;
+    private final String jimagePath;
+
+    private Content content;
+    private final List<Map<String, byte[]>> newImageEntries = new ArrayList<>(KINDS);
+    private final Map<String, byte[]> newFileEntries = new ConcurrentHashMap<>();
+    private volatile boolean modified = false;
+
+    private DigestCache(boolean enabled, Path cacheFile, Path runtimePath, long jimageSize, long jimageLastModifiedTime, String jimagePath) {
+        this.enabled = enabled;
+        this.cacheFile = cacheFile;
+        this.runtimePath = runtimePath;
+        this.jimageSize = jimageSize;
+        this.jimageLastModifiedTime = jimageLastModifiedTime;
+        this.jimagePath = jimagePath;
+
+        for (int i = 0; i < KINDS; i++) {
+            newImageEntries.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    public static DigestCache disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Opens the cache of the runtime path in the cache directory.
+     *
+     * @param cacheDir the cache directory, or {@code null} to return a disabled cache
+     */
+    public static DigestCache open(Path cacheDir, Path runtimePath, Path jimagePath) throws IOException {
+        if (cacheDir == null) {
+            return DISABLED;
+        }
+
+        Path realJimagePath = jimagePath.toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(realJimagePath, BasicFileAttributes.class);
+
+        String fileName = MessageDigestUtils.hash(DigestAlgorithm.SHA_256,
+                ByteBuffer.wrap(realJimagePath.toString().getBytes(StandardCharsets.UTF_8))).substring(0, 32);
+
+        Files.createDirectories(cacheDir);
+        DigestCache cache = new DigestCache(true, cacheDir.resolve(fileName + ".digests"), runtimePath,
+                attributes.size(), attributes.lastModifiedTime().toMillis(), realJimagePath.toString());
+        cache.content = cache.load();
+        return cache;
+    }
+
+    /**
+     * Creates a cache of the runtime path that is not backed by a file. The jimage file must not change while the cache is used.
+     */
+    public static DigestCache inMemory(Path runtimePath, Path jimagePath) throws IOException {
+        Path realJimagePath = jimagePath.toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(realJimagePath, BasicFileAttributes.class);
+
+        DigestCache cache = new DigestCache(true, null, runtimePath,
+                attributes.size(), attributes.lastModifiedTime().toMillis(), realJimagePath.toString());
+        cache.content = new Content();
+        return cache;
+    }
+
+    private static String kindName(int kind) {
+        return kind == CRC32_KIND ? CRC32 : DigestAlgorithm.values()[kind].getName();
+    }
+
+    private static int kindLength(int kind) {
+        return kind == CRC32_KIND ? 4 : DigestAlgorithm.values()[kind].getDigestLength();
+    }
+
+    private static int kindOf(String name) {
+        if (CRC32.equals(name)) {
+            return CRC32_KIND;
+        }
+        DigestAlgorithm algorithm = DigestAlgorithm.of(name);
+        return algorithm == null ? -1 : algorithm.ordinal();
+    }
+
+    private static final class ImageTable {
+        final String[] names; // sorted
+        final byte[] digests;
+        final int digestLength;
+
+        ImageTable(String[] names, byte[] digests, int digestLength) {
+            this.names = names;
+            this.digests = digests;
+            this.digestLength = digestLength;
+        }
+
+        byte[] get(String name) {
+            int idx = Arrays.binarySearch(names, name);
+            return idx < 0 ? null : Arrays.copyOfRange(digests, idx * digestLength, (idx + 1) * digestLength);
+        }
+    }
+
+    private static final class Content {
+        final ImageTable[] imageTables = new ImageTable[KINDS];
+        final Map<String, byte[]> fileEntries = new HashMap<>();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * @return the content of the cache file, or an empty content if it does not exist, is corrupted, or is out of date
+     */
+    private Content load() throws IOException {
+        Content content = new Content();
+
+        byte[] data;
+        try {
+            data = Files.readAllBytes(cacheFile);
+        } catch (NoSuchFileException e) {
+            return content;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION
+                    || buffer.getLong() != jimageSize
+                    || buffer.getLong() != jimageLastModifiedTime
+                    || !readString(buffer).equals(jimagePath)) {
+                Main.printDebugMessage(() -> "Discard digest cache: " + cacheFile);
+                return content;
+            }
+
+            int tableCount = buffer.getInt();
+            for (int i = 0; i < tableCount; i++) {
+                int kind = kindOf(readString(buffer));
+                int digestLength = buffer.getInt();
+                int count = buffer.getInt();
+
+                String[] names = new String[count];
+                for (int j = 0; j < count; j++) {
+                    names[j] = readString(buffer);
+                }
+
+                byte[] digests = new byte[count * digestLength];
+                buffer.get(digests);
+
+                if (kind >= 0 && digestLength == kindLength(kind)) {
+                    content.imageTables[kind] = new ImageTable(names, digests, digestLength);
+                }
+            }
+
+            int fileCount = buffer.getInt();
+            for (int i = 0; i < fileCount; i++) {
+                String key = readString(buffer);
+                byte[] digest = new byte[buffer.getInt()];
+                buffer.get(digest);
+                content.fileEntries.put(key, digest);
+            }
+            return content;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            Main.printDebugMessage(() -> "Corrupted digest cache: " + cacheFile);
+            return new Content();
+        }
+    }
+
+    private byte[] getImageEntry(int kind, ImageLocation location) {
+        String name = location.getFullName();
+        ImageTable table = content.imageTables[kind];
+        byte[] res = table != null ? table.get(name) : null;
+        return res != null ? res : newImageEntries.get(kind).get(name);
+    }
+
+    private void putImageEntry(int kind, ImageLocation location, byte[] digest) {
+        newImageEntries.get(kind).put(location.getFullName(), digest);
+        modified = true;
+    }
+
+    private String fileKey(int kind, Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return kindName(kind) + "\t" + runtimePath.relativize(file) + "\t" + attributes.size() + "\t" + attributes.lastModifiedTime().toMillis();
+    }
+
+    private byte[] getFileEntry(String key) {
+        byte[] res = content.fileEntries.get(key);
+        return res != null ? res : newFileEntries.get(key);
+    }
+
+    private static byte[] crc32ToBytes(long crc) {
+        return ByteBuffer.allocate(4).putInt((int) crc).array();
+    }
+
+    private static long bytesToCrc32(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getInt() & 0xffffffffL;
+    }
+
+    public String hash(DigestAlgorithm algorithm, BasicImageReader image, ImageLocation location) {
+        if (!enabled) {
+            return MessageDigestUtils.hash(algorithm, image, location);
+        }
+
+        byte[] digest = getImageEntry(algorithm.ordinal(), location);
+        if (digest != null) {
+            return MessageDigestUtils.toHexString(digest);
+        }
+
+        // The CRC-32 is computed in the same pass, so that the next runs can compare it first
+        CRC32 crc = new CRC32();
+        String hash = MessageDigestUtils.hash(algorithm, image, location, crc);
+        putImageEntry(algorithm.ordinal(), location, MessageDigestUtils.parseHexString(hash));
+        putImageEntry(CRC32_KIND, location, crc32ToBytes(crc.getValue()));
+        return hash;
+    }
+
+    /**
+     * Like {@link #hash(DigestAlgorithm, BasicImageReader, ImageLocation)}, but if the hash value is not cached,
+     * it is computed from the content of the resource that has already been read by the caller.
+     */
+    public String hash(DigestAlgorithm algorithm, ImageLocation location, ByteBuffer content) {
+        if (!enabled) {
+            return MessageDigestUtils.hash(algorithm, content);
+        }
+
+        byte[] digest = getImageEntry(algorithm.ordinal(), location);
+        if (digest != null) {
+            return MessageDigestUtils.toHexString(digest);
+        }
+
+        String hash = MessageDigestUtils.hash(algorithm, content);
+        putImageEntry(algorithm.ordinal(), location, MessageDigestUtils.parseHexString(hash));
+        return hash;
+    }
+
+    /**
+     * @return the CRC-32 of the resource if it is cached, otherwise {@code -1}. It is never computed by this method.
+     */
+    public long getCachedCrc32(ImageLocation location) {
+        if (!enabled) {
+            return -1;
+        }
+
+        byte[] digest = getImageEntry(CRC32_KIND, location);
+        return digest != null ? bytesToCrc32(digest) : -1;
+    }
+
+    /**
+     * @param file a file in the runtime path
+     */
+    public String hash(DigestAlgorithm algorithm, Path file) throws IOException {
+        if (!enabled) {
+            return MessageDigestUtils.hash(algorithm, file);
+        }
+
+        String key = fileKey(algorithm.ordinal(), file);
+        byte[] digest = getFileEntry(key);
+        if (digest != null) {
+            return MessageDigestUtils.toHexString(digest);
+        }
+
+        // The CRC-32 is computed in the same pass, so that the next runs can compare it first
+        CRC32 crc = new CRC32();
+        String hash = MessageDigestUtils.hash(algorithm, file, crc);
+        newFileEntries.put(key, MessageDigestUtils.parseHexString(hash));
+        newFileEntries.put(fileKey(CRC32_KIND, file), crc32ToBytes(crc.getValue()));
+        modified = true;
+        return hash;
+    }
+
+    /**
+     * @param file a file in the runtime path
+     * @return the CRC-32 of the file if it is cached, otherwise {@code -1}. It is never computed by this method.
+     */
+    public long getCachedCrc32(Path file) throws IOException {
+        if (!enabled) {
+            return -1;
+        }
+
+        byte[] digest = getFileEntry(fileKey(CRC32_KIND, file));
+        return digest != null ? bytesToCrc32(digest) : -1;
+    }
+
+    /**
+     * Writes the new hash values back to the cache file, they are still kept in this cache.
+     */
+    public void flush() throws IOException {
+        if (cacheFile == null || !modified) {
+            return;
+        }
+        modified = false;
+
+        Path lockFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".lock");
+        FileLockUtils.withLock(lockFile, () -> {
+            // Keep the hash values written by other processes since this cache was opened
+            Content current = load();
+
+            Path tempFile = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(VERSION);
+                    output.writeLong(jimageSize);
+                    output.writeLong(jimageLastModifiedTime);
+                    writeString(output, jimagePath);
+
+                    output.writeInt(KINDS);
+                    for (int kind = 0; kind < KINDS; kind++) {
+                        TreeMap<String, byte[]> entries = new TreeMap<>(newImageEntries.get(kind));
+                        ImageTable table = current.imageTables[kind];
+                        if (table != null) {
+                            for (int i = 0; i < table.names.length; i++) {
+                                entries.putIfAbsent(table.names[i], table.get(table.names[i]));
+                            }
+                        }
+
+                        writeString(output, kindName(kind));
+                        output.writeInt(kindLength(kind));
+                        output.writeInt(entries.size());
+                        for (String name : entries.keySet()) {
+                            writeString(output, name);
+                        }
+                        for (byte[] digest : entries.values()) {
+                            output.write(digest);
+                        }
+                    }
+
+                    Map<String, byte[]> fileEntries = current.fileEntries;
+                    fileEntries.putAll(newFileEntries);
+                    output.writeInt(fileEntries.size());
+                    for (Map.Entry<String, byte[]> entry : fileEntries.entrySet()) {
+                        writeString(output, entry.getKey());
+                        output.writeInt(entry.getValue().length);
+                        output.write(entry.getValue());
+                    }
+                }
+
+                try {
+                    Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
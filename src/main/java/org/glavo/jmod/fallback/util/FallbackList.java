@@ -0,0 +1,58 @@
+package org.glavo.jmod.fallback.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The content of a {@code fallback.list}: the algorithm of the recorded hash values and the records.
+ * <p>
+ * Records are accessed by index, from {@code 0} to {@code size() - 1}, or looked up by path.
+ * Paths are the paths of the files in the jmod without the leading {@code /}.
+ */
+public abstract class FallbackList {
+    private static final FallbackList EMPTY = CompactFallbackList.empty(DigestAlgorithm.SHA_256);
+
+    public static FallbackList empty() {
+        return EMPTY;
+    }
+
+    public abstract DigestAlgorithm getDigestAlgorithm();
+
+    public abstract int size();
+
+    public abstract String getPath(int index);
+
+    /**
+     * @return the hash value of the record, or {@code null} if the file is not verified
+     */
+    public abstract String getHash(int index);
+
+    /**
+     * @return the index of the record of the path, or {@code -1} if there is no such record
+     */
+    public abstract int indexOf(String path);
+
+    public boolean contains(String path) {
+        return indexOf(path) >= 0;
+    }
+
+    /**
+     * @return the hash value of the path, or {@code null} if the path has no record or is not verified
+     */
+    public String getHash(String path) {
+        int idx = indexOf(path);
+        return idx >= 0 ? getHash(idx) : null;
+    }
+
+    /**
+     * @return a new map of all records, in index order
+     */
+    public Map<String, String> toMap() {
+        int size = size();
+        Map<String, String> res = new LinkedHashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            res.put(getPath(i), getHash(i));
+        }
+        return res;
+    }
+}
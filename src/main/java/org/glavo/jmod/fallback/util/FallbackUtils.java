@@ -4,30 +4,62 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 public class FallbackUtils {
-    public static Map<String, String> readFallbackList(InputStream input) throws IOException {
-        LinkedHashMap<String, String> res = new LinkedHashMap<>();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    /**
+     * The optional first line of a fallback list, followed by space separated {@code key=value} properties,
+     * for example {@code #fallback.list version=1 digest=SHA-512/256}.
+     * Lists without header are version 1 lists whose hash values are computed with SHA-256.
+     */
+    public static final String HEADER = "#fallback.list";
+    public static final int VERSION = 1;
 
-        for (String line : reader.lines().collect(Collectors.toList())) {
+    /**
+     * Reads a fallback list in the text format (version 1) or the binary format (version 2).
+     */
+    public static FallbackList readFallbackList(InputStream input) throws IOException {
+        PushbackInputStream pushbackInput = new PushbackInputStream(input, IndexedFallbackList.MAGIC.length);
+        byte[] head = pushbackInput.readNBytes(IndexedFallbackList.MAGIC.length);
+        pushbackInput.unread(head);
+        if (IndexedFallbackList.hasMagic(head)) {
+            return IndexedFallbackList.read(ByteBuffer.wrap(pushbackInput.readAllBytes()));
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(pushbackInput, StandardCharsets.UTF_8));
+
+        DigestAlgorithm algorithm = DigestAlgorithm.SHA_256;
+        int hashLength = algorithm.getDigestLength() * 2;
+        boolean firstLine = true;
+        CompactFallbackList.Builder builder = null;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
             if (line.isBlank()) {
                 continue;
             }
 
+            if (firstLine) {
+                firstLine = false;
+                if (line.startsWith(HEADER + " ")) {
+                    algorithm = readHeader(line);
+                    hashLength = algorithm.getDigestLength() * 2;
+                    continue;
+                }
+            }
+
             String fileName = null;
             String hash = null;
 
             int idx = line.indexOf(' ');
-            if (idx == 1                // without verify
-                    || idx == 64) {     // SHA-256
+            if (idx == 1                    // without verify
+                    || idx == hashLength) {
                 fileName = line.substring(idx + 1);
                 hash = line.substring(0, idx);
             }
@@ -35,7 +67,7 @@ public class FallbackUtils {
             if (fileName == null
                     || fileName.isEmpty()
                     || (idx == 1 && !"-".equals(hash)
-                    || (idx == 64 && !MessageDigestUtils.checkSHA256Hash(hash)))) {
+                    || (idx == hashLength && !algorithm.isValidHash(hash)))) {
                 throw new IOException(Messages.getMessage("error.invalid.record", line));
             }
 
@@ -53,25 +85,97 @@ public class FallbackUtils {
                 }
             }
 
-            String oldValue = res.putIfAbsent(fileName, hash);
-            if (oldValue != null && hash != null && !oldValue.equals(hash)) {
-                throw new IOException(Messages.getMessage("error.conflict.record", fileName, hash, oldValue));
+            if (builder == null) {
+                builder = new CompactFallbackList.Builder(algorithm);
             }
+            builder.add(fileName, hash);
+        }
+        return builder != null ? builder.build() : CompactFallbackList.empty(algorithm);
+    }
+
+    private static DigestAlgorithm readHeader(String line) throws IOException {
+        int version = -1;
+        DigestAlgorithm algorithm = DigestAlgorithm.SHA_256;
+
+        for (String property : line.substring(HEADER.length() + 1).split(" ")) {
+            if (property.isEmpty()) {
+                continue;
+            }
+
+            int idx = property.indexOf('=');
+            String key = idx > 0 ? property.substring(0, idx) : property;
+            String value = idx > 0 ? property.substring(idx + 1) : "";
+            switch (key) {
+                case "version":
+                    try {
+                        version = Integer.parseInt(value);
+                    } catch (NumberFormatException ignored) {
+                    }
+                    break;
+                case "digest":
+                    algorithm = DigestAlgorithm.of(value);
+                    if (algorithm == null) {
+                        throw new IOException(Messages.getMessage("error.unsupported.digest", value));
+                    }
+                    break;
+                default:
+                    // Ignore unknown properties
+                    break;
+            }
+        }
+
+        if (version != VERSION) {
+            throw new IOException(Messages.getMessage("error.invalid.header", line));
+        }
+        return algorithm;
+    }
+
+    /**
+     * Writes the records of a fallback list. A {@code null} or empty hash value means that the file is not verified.
+     * <p>
+     * In the text format (version 1), the header is only written if the algorithm is not SHA-256,
+     * so that such lists can still be read by older versions.
+     *
+     * @param version {@code 1} for the text format, {@code 2} for the binary format
+     */
+    public static void writeFallbackList(OutputStream output, DigestAlgorithm algorithm, Map<String, String> list, int version) throws IOException {
+        if (version == IndexedFallbackList.VERSION) {
+            IndexedFallbackList.write(output, algorithm, list);
+            return;
+        }
+        if (version != VERSION) {
+            throw new IllegalArgumentException("version: " + version);
+        }
+
+        if (algorithm != DigestAlgorithm.SHA_256) {
+            output.write((HEADER + " version=" + VERSION + " digest=" + algorithm.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        for (Map.Entry<String, String> entry : list.entrySet()) {
+            String hash = entry.getValue();
+            if (hash == null || hash.isEmpty()) {
+                output.write('-');
+            } else {
+                output.write(hash.getBytes(StandardCharsets.UTF_8));
+            }
+
+            output.write(' ');
+            output.write(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            output.write('\n');
         }
-        return res;
     }
 
-    public static Map<String, String> readFallbackList(Path path) throws IOException {
+    public static FallbackList readFallbackList(Path path) throws IOException {
         try (InputStream input = Files.newInputStream(path)) {
             return readFallbackList(input);
         }
     }
 
-    public static Map<String, String> readFallbackListOrEmpty(Path path) throws IOException {
+    public static FallbackList readFallbackListOrEmpty(Path path) throws IOException {
         if (Files.exists(path)) {
             return readFallbackList(path);
         } else {
-            return Collections.emptyMap();
+            return FallbackList.empty();
         }
     }
 }
@@ -0,0 +1,45 @@
+package org.glavo.jmod.fallback.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs actions while holding a lock file, such as writing back a cache file shared by several processes.
+ * <p>
+ * A {@link FileLock} is held on behalf of the whole JVM, so it only excludes other processes:
+ * locking a file that is already locked in this JVM throws {@link OverlappingFileLockException} instead of waiting.
+ * The threads of this JVM therefore first wait for each other on a monitor of the lock file, then acquire the file lock.
+ */
+public final class FileLockUtils {
+    private static final ConcurrentHashMap<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private FileLockUtils() {
+    }
+
+    public interface LockedAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * @param lockFile the lock file, it is created if it does not exist. Its parent directory must exist.
+     */
+    public static void withLock(Path lockFile, LockedAction action) throws IOException {
+        // The same lock file may be reached by different paths, the real path of its directory identifies it
+        Path key = lockFile.toAbsolutePath().getParent().toRealPath().resolve(lockFile.getFileName());
+        synchronized (MONITORS.computeIfAbsent(key, k -> new Object())) {
+            try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = lockChannel.lock();
+                try {
+                    action.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+}
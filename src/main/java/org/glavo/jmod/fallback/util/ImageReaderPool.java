@@ -0,0 +1,98 @@
+package org.glavo.jmod.fallback.util;
+
+import jdk.internal.jimage.BasicImageReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hands out one {@link BasicImageReader} per thread for the same jimage file.
+ * <p>
+ * {@code ImageReader.open} returns a reader shared by the whole process, and its decompressor cache
+ * is not thread-safe, so workers that read resources concurrently each get their own reader instead.
+ * The image is memory-mapped, so the extra readers only cost address space.
+ * <p>
+ * The reader of a terminated thread is handed out again to a new thread,
+ * so a long-lived pool used by short-lived worker threads does not keep opening readers.
+ */
+public final class ImageReaderPool implements Closeable {
+    private final Path imagePath;
+    private final ThreadLocal<BasicImageReader> readers = new ThreadLocal<>();
+    private final Queue<BasicImageReader> opened = new ConcurrentLinkedQueue<>();
+    private final Map<Thread, BasicImageReader> owners = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    public ImageReaderPool(Path imagePath) throws IOException {
+        this.imagePath = imagePath;
+
+        // Fail early if the file is not a jimage
+        get();
+    }
+
+    public Path getImagePath() {
+        return imagePath;
+    }
+
+    public BasicImageReader get() throws IOException {
+        if (closed) {
+            throw new IOException("ImageReaderPool is closed");
+        }
+
+        BasicImageReader reader = readers.get();
+        if (reader == null) {
+            reader = reclaim();
+            if (reader == null) {
+                reader = BasicImageReader.open(imagePath);
+                opened.add(reader);
+            }
+            owners.put(Thread.currentThread(), reader);
+            readers.set(reader);
+        }
+        return reader;
+    }
+
+    /**
+     * @return the reader of a terminated thread, or {@code null} if all readers are used by live threads
+     */
+    private synchronized BasicImageReader reclaim() {
+        Iterator<Map.Entry<Thread, BasicImageReader>> it = owners.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Thread, BasicImageReader> entry = it.next();
+            if (!entry.getKey().isAlive()) {
+                it.remove();
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        owners.clear();
+
+        IOException exception = null;
+        BasicImageReader reader;
+        while ((reader = opened.poll()) != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
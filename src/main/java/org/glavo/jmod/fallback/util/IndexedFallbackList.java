@@ -0,0 +1,362 @@
+package org.glavo.jmod.fallback.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A fallback list in the binary format (version 2).
+ * <p>
+ * The format is (all integers are big-endian):
+ * <pre>
+ * u1[4]  magic                  0x89 'F' 'L' 'S'
+ * u2     version                2
+ * u1     algorithm name length
+ * u1[]   algorithm name         for example "SHA-256"
+ * u2     digest length
+ * u4     prefix count
+ * {u2 length, u1[] bytes}[]     the directory prefixes (ending with '/', or empty), sorted
+ * u4     record count
+ * {u4 prefix index, u4 name offset, u2 name length, u1 flags, u1 reserved}[]
+ *                               the records, sorted by prefix index and then by name
+ * u4     names length
+ * u1[]   names                  the file names of the records
+ * u1[]   digests                digest length bytes for each record, all zero if the file is not verified
+ * </pre>
+ * Strings are encoded in UTF-8 and compared as unsigned bytes.
+ * Since the records are sorted and have a fixed size, a record can be looked up by binary search
+ * without decoding the other records.
+ */
+final class IndexedFallbackList extends FallbackList {
+    static final byte[] MAGIC = {(byte) 0x89, 'F', 'L', 'S'};
+    static final int VERSION = 2;
+
+    private static final int RECORD_SIZE = 12;
+    private static final int FLAG_VERIFIED = 0x01;
+
+    private final DigestAlgorithm digestAlgorithm;
+    private final int digestLength;
+    private final String[] prefixes;
+    private final byte[][] prefixBytes;
+    private final int count;
+    private final ByteBuffer records;
+    private final ByteBuffer names;
+    private final ByteBuffer digests;
+
+    private IndexedFallbackList(DigestAlgorithm digestAlgorithm, String[] prefixes, byte[][] prefixBytes,
+                                int count, ByteBuffer records, ByteBuffer names, ByteBuffer digests) {
+        this.digestAlgorithm = digestAlgorithm;
+        this.digestLength = digestAlgorithm.getDigestLength();
+        this.prefixes = prefixes;
+        this.prefixBytes = prefixBytes;
+        this.count = count;
+        this.records = records;
+        this.names = names;
+        this.digests = digests;
+    }
+
+    static boolean hasMagic(byte[] head) {
+        return head.length >= MAGIC.length && Arrays.equals(head, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer res = buffer.slice();
+        res.limit(length);
+        buffer.position(buffer.position() + length);
+        return res;
+    }
+
+    /**
+     * Reads a fallback list from the buffer, which must start with the magic number.
+     * The buffer is used by the returned list and must not be modified.
+     */
+    static IndexedFallbackList read(ByteBuffer buffer) throws IOException {
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!hasMagic(magic) || buffer.getShort() != VERSION) {
+                throw new IOException(Messages.getMessage("error.invalid.header", "binary"));
+            }
+
+            byte[] algorithmName = new byte[buffer.get() & 0xff];
+            buffer.get(algorithmName);
+            String name = new String(algorithmName, StandardCharsets.UTF_8);
+            DigestAlgorithm algorithm = DigestAlgorithm.of(name);
+            if (algorithm == null) {
+                throw new IOException(Messages.getMessage("error.unsupported.digest", name));
+            }
+            if ((buffer.getShort() & 0xffff) != algorithm.getDigestLength()) {
+                throw new IOException(Messages.getMessage("error.invalid.header", name));
+            }
+
+            int prefixCount = buffer.getInt();
+            String[] prefixes = new String[prefixCount];
+            byte[][] prefixBytes = new byte[prefixCount][];
+            for (int i = 0; i < prefixCount; i++) {
+                byte[] bytes = new byte[buffer.getShort() & 0xffff];
+                buffer.get(bytes);
+                prefixBytes[i] = bytes;
+                prefixes[i] = new String(bytes, StandardCharsets.UTF_8);
+                checkPrefix(prefixes[i]);
+                if (i > 0 && Arrays.compareUnsigned(prefixBytes[i - 1], bytes) >= 0) {
+                    throw new IOException(Messages.getMessage("error.invalid.record", prefixes[i]));
+                }
+            }
+
+            int count = buffer.getInt();
+            if (count < 0) {
+                throw new IOException(Messages.getMessage("error.invalid.record", count));
+            }
+            ByteBuffer records = slice(buffer, Math.multiplyExact(count, RECORD_SIZE));
+            ByteBuffer names = slice(buffer, buffer.getInt());
+            ByteBuffer digests = slice(buffer, Math.multiplyExact(count, algorithm.getDigestLength()));
+
+            IndexedFallbackList list = new IndexedFallbackList(algorithm, prefixes, prefixBytes, count, records, names, digests);
+            list.verify();
+            return list;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | ArithmeticException e) {
+            throw new IOException(Messages.getMessage("error.invalid.record", e), e);
+        }
+    }
+
+    private static void checkPrefix(String prefix) throws IOException {
+        if (prefix.isEmpty()) {
+            return;
+        }
+        if (prefix.startsWith("/") || !prefix.endsWith("/")) {
+            throw new IOException(Messages.getMessage("error.invalid.record", prefix));
+        }
+        for (String s : prefix.substring(0, prefix.length() - 1).split("/")) {
+            if (s.isEmpty() || ".".equals(s) || "..".equals(s)) {
+                throw new IOException("zip slip: " + prefix);
+            }
+        }
+    }
+
+    /**
+     * Checks that the records are valid and strictly sorted, so that binary search works.
+     * The names are checked on the bytes, without being decoded.
+     */
+    private void verify() throws IOException {
+        for (int i = 0; i < count; i++) {
+            int prefixIndex = prefixIndex(i);
+            int nameOffset = nameOffset(i);
+            int nameLength = nameLength(i);
+            if (prefixIndex < 0 || prefixIndex >= prefixes.length
+                    || nameOffset < 0 || nameLength == 0 || nameLength > names.limit() - nameOffset) {
+                throw new IOException(Messages.getMessage("error.invalid.record", i));
+            }
+
+            // '/' and '.' cannot be part of a multibyte UTF-8 sequence
+            boolean dots = nameLength <= 2;
+            for (int j = nameOffset, end = nameOffset + nameLength; j < end; j++) {
+                byte b = names.get(j);
+                if (b == '/') {
+                    throw new IOException("zip slip: " + getPath(i));
+                }
+                dots &= b == '.';
+            }
+            if (dots) {
+                throw new IOException("zip slip: " + getPath(i));
+            }
+
+            if (i > 0) {
+                int c = Integer.compare(prefixIndex(i - 1), prefixIndex);
+                if (c == 0) {
+                    c = compareName(i - 1, names, nameOffset, nameLength);
+                }
+                if (c >= 0) {
+                    throw new IOException(Messages.getMessage("error.invalid.record", getPath(i)));
+                }
+            }
+        }
+    }
+
+    private int prefixIndex(int index) {
+        return records.getInt(index * RECORD_SIZE);
+    }
+
+    private int nameOffset(int index) {
+        return records.getInt(index * RECORD_SIZE + 4);
+    }
+
+    private int nameLength(int index) {
+        return records.getShort(index * RECORD_SIZE + 8) & 0xffff;
+    }
+
+    private int flags(int index) {
+        return records.get(index * RECORD_SIZE + 10) & 0xff;
+    }
+
+    private String getName(int index) {
+        byte[] bytes = new byte[nameLength(index)];
+        names.duplicate().position(nameOffset(index)).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares the name of the record with the bytes as unsigned bytes.
+     */
+    private int compareName(int index, ByteBuffer other, int otherOffset, int otherLength) {
+        int offset = nameOffset(index);
+        int length = nameLength(index);
+        int n = Math.min(length, otherLength);
+        for (int i = 0; i < n; i++) {
+            int c = Integer.compare(names.get(offset + i) & 0xff, other.get(otherOffset + i) & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(length, otherLength);
+    }
+
+    @Override
+    public DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public String getPath(int index) {
+        Objects.checkIndex(index, count);
+        return prefixes[prefixIndex(index)] + getName(index);
+    }
+
+    @Override
+    public String getHash(int index) {
+        Objects.checkIndex(index, count);
+        if ((flags(index) & FLAG_VERIFIED) == 0) {
+            return null;
+        }
+        byte[] digest = new byte[digestLength];
+        digests.duplicate().position(index * digestLength).get(digest);
+        return MessageDigestUtils.toHexString(digest);
+    }
+
+    @Override
+    public int indexOf(String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        int nameStart = path.lastIndexOf('/') + 1;
+        int nameByteStart = nameStart == 0 ? 0 : path.substring(0, nameStart).getBytes(StandardCharsets.UTF_8).length;
+
+        int prefixIndex = Arrays.binarySearch(prefixBytes, Arrays.copyOf(bytes, nameByteStart), Arrays::compareUnsigned);
+        if (prefixIndex < 0) {
+            return -1;
+        }
+
+        ByteBuffer name = ByteBuffer.wrap(bytes);
+        int nameLength = bytes.length - nameByteStart;
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = Integer.compare(prefixIndex(mid), prefixIndex);
+            if (c == 0) {
+                c = compareName(mid, name, nameByteStart, nameLength);
+            }
+
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the records in the binary format. A {@code null} or empty hash value means that the file is not verified.
+     */
+    static void write(OutputStream out, DigestAlgorithm algorithm, Map<String, String> list) throws IOException {
+        int digestLength = algorithm.getDigestLength();
+
+        TreeMap<byte[], Integer> prefixIndexes = new TreeMap<>(Arrays::compareUnsigned);
+        for (String path : list.keySet()) {
+            prefixIndexes.put(path.substring(0, path.lastIndexOf('/') + 1).getBytes(StandardCharsets.UTF_8), 0);
+        }
+        int nextIndex = 0;
+        for (Map.Entry<byte[], Integer> entry : prefixIndexes.entrySet()) {
+            entry.setValue(nextIndex++);
+        }
+
+        final class Record {
+            final int prefixIndex;
+            final byte[] name;
+            final String hash;
+
+            Record(int prefixIndex, byte[] name, String hash) {
+                this.prefixIndex = prefixIndex;
+                this.name = name;
+                this.hash = hash;
+            }
+        }
+
+        List<Record> records = new ArrayList<>(list.size());
+        for (Map.Entry<String, String> entry : list.entrySet()) {
+            String path = entry.getKey();
+            int idx = path.lastIndexOf('/') + 1;
+            records.add(new Record(
+                    prefixIndexes.get(path.substring(0, idx).getBytes(StandardCharsets.UTF_8)),
+                    path.substring(idx).getBytes(StandardCharsets.UTF_8),
+                    entry.getValue()));
+        }
+        records.sort((x, y) -> {
+            int c = Integer.compare(x.prefixIndex, y.prefixIndex);
+            return c != 0 ? c : Arrays.compareUnsigned(x.name, y.name);
+        });
+
+        DataOutputStream output = new DataOutputStream(out);
+        output.write(MAGIC);
+        output.writeShort(VERSION);
+        byte[] algorithmName = algorithm.getName().getBytes(StandardCharsets.UTF_8);
+        output.writeByte(algorithmName.length);
+        output.write(algorithmName);
+        output.writeShort(digestLength);
+
+        output.writeInt(prefixIndexes.size());
+        for (byte[] prefix : prefixIndexes.keySet()) {
+            output.writeShort(prefix.length);
+            output.write(prefix);
+        }
+
+        output.writeInt(records.size());
+        int nameOffset = 0;
+        for (Record record : records) {
+            output.writeInt(record.prefixIndex);
+            output.writeInt(nameOffset);
+            output.writeShort(record.name.length);
+            output.writeByte(record.hash == null || record.hash.isEmpty() ? 0 : FLAG_VERIFIED);
+            output.writeByte(0);
+            nameOffset += record.name.length;
+        }
+
+        output.writeInt(nameOffset);
+        for (Record record : records) {
+            output.write(record.name);
+        }
+
+        byte[] empty = new byte[digestLength];
+        for (Record record : records) {
+            if (record.hash == null || record.hash.isEmpty()) {
+                output.write(empty);
+            } else {
+                if (!algorithm.isValidHash(record.hash)) {
+                    throw new IOException(Messages.getMessage("error.invalid.record", record.hash));
+                }
+                output.write(MessageDigestUtils.parseHexString(record.hash));
+            }
+        }
+        output.flush();
+    }
+}
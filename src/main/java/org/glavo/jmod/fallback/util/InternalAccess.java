@@ -0,0 +1,75 @@
+package org.glavo.jmod.fallback.util;
+
+import org.glavo.jmod.fallback.Options;
+import org.glavo.jmod.fallback.jlink.FallbackJmodPlugin;
+import org.glavo.jmod.fallback.module.FallbackJModModuleFinder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the classes of the exported packages whose constructors take the types of this package.
+ * <p>
+ * This package is not exported, so these constructors are not public, and would not be usable by other modules anyway.
+ * Instead, each class registers a factory here in its static initializer, and the main package creates it through the factory.
+ */
+public final class InternalAccess {
+    private InternalAccess() {
+    }
+
+    public interface ModuleFinderFactory {
+        /**
+         * Creates a finder that reads the fallback files from the opened jimage of the runtime path,
+         * the jimage is not closed with the finder.
+         *
+         * @param cacheDir the directory of the persistent index of the module descriptors, or {@code null} to scan every jmod file
+         */
+        FallbackJModModuleFinder create(ImageReaderPool images, List<Path> entries, Path cacheDir) throws IOException;
+    }
+
+    public interface JlinkPluginFactory {
+        /**
+         * @param executor the executor that verifies the fallback files in advance, or {@code null} to verify them when they are read
+         */
+        FallbackJmodPlugin create(Options options, ImageReaderPool images, DigestCache digestCache, ExecutorService executor);
+    }
+
+    private static volatile ModuleFinderFactory moduleFinderFactory;
+    private static volatile JlinkPluginFactory jlinkPluginFactory;
+
+    public static void setModuleFinderFactory(ModuleFinderFactory factory) {
+        moduleFinderFactory = factory;
+    }
+
+    public static void setJlinkPluginFactory(JlinkPluginFactory factory) {
+        jlinkPluginFactory = factory;
+    }
+
+    public static ModuleFinderFactory getModuleFinderFactory() {
+        ModuleFinderFactory factory = moduleFinderFactory;
+        if (factory == null) {
+            ensureInitialized(FallbackJModModuleFinder.class);
+            factory = moduleFinderFactory;
+        }
+        return factory;
+    }
+
+    public static JlinkPluginFactory getJlinkPluginFactory() {
+        JlinkPluginFactory factory = jlinkPluginFactory;
+        if (factory == null) {
+            ensureInitialized(FallbackJmodPlugin.class);
+            factory = jlinkPluginFactory;
+        }
+        return factory;
+    }
+
+    private static void ensureInitialized(Class<?> clazz) {
+        try {
+            Class.forName(clazz.getName(), true, clazz.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.glavo.jmod.fallback.util;
 
+import jdk.internal.jimage.BasicImageReader;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -14,6 +16,16 @@ public class JmodUtils {
     private static final byte[] MAGIC_NUMBER = {0x4A, 0x4D};
 
     public static FileSystem open(Path path) throws IOException {
+        checkMagicNumber(path);
+        return ZipUtils.ZIPFS_PROVIDER.newFileSystem(path, Collections.emptyMap());
+    }
+
+    public static RawZipFile openRaw(Path path) throws IOException {
+        checkMagicNumber(path);
+        return new RawZipFile(path);
+    }
+
+    private static void checkMagicNumber(Path path) throws IOException {
         byte[] magic = new byte[4];
         int n;
         try (InputStream input = Files.newInputStream(path)) {
@@ -27,8 +39,6 @@ public class JmodUtils {
         if (magic[2] != MAJOR_VERSION || magic[3] != MINOR_VERSION) {
             throw new IOException("Unsupported jmod file version");
         }
-
-        return ZipUtils.ZIPFS_PROVIDER.newFileSystem(path, Collections.emptyMap());
     }
 
     public static void writeMagicNumber(OutputStream output) throws IOException {
@@ -37,6 +47,11 @@ public class JmodUtils {
         output.write(MINOR_VERSION);
     }
 
+    public static boolean containsModule(BasicImageReader image, String moduleName) {
+        // Every module in the image has a module-info.class, so this avoids building the node tree of ImageReader
+        return image.findLocation(moduleName, "module-info.class") != null;
+    }
+
     public static String mapToRuntimePath(String filePath) {
         // See jdk.tools.jlink.builder.DefaultImageBuilder#nativeDir
         if (filePath.startsWith(JmodUtils.SECTION_LIB) && (filePath.endsWith(".dll")
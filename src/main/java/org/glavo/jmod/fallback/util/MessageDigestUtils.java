@@ -1,11 +1,16 @@
 package org.glavo.jmod.fallback.util;
 
+import jdk.internal.jimage.BasicImageReader;
+import jdk.internal.jimage.ImageLocation;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
 
 public class MessageDigestUtils {
     public static final String[] byte2str = {
@@ -27,35 +32,37 @@ public class MessageDigestUtils {
             "f0", "f1", "f2", "f3", "f4", "f5", "f6", "f7", "f8", "f9", "fa", "fb", "fc", "fd", "fe", "ff"
     };
 
+    /**
+     * Files smaller than this are read into a direct buffer, larger files are memory-mapped.
+     */
+    private static final int MAP_THRESHOLD = 64 * 1024;
+
     private static final class Cache {
-        public final MessageDigest messageDigest;
-        public final byte[] cacheArray;
+        public final MessageDigest[] messageDigests = new MessageDigest[DigestAlgorithm.values().length];
+        public final byte[] cacheArray = new byte[8 * 1024];
+        public final ByteBuffer directBuffer = ByteBuffer.allocateDirect(MAP_THRESHOLD);
+    }
 
-        private Cache(MessageDigest messageDigest, byte[] cacheArray) {
-            this.messageDigest = messageDigest;
-            this.cacheArray = cacheArray;
-        }
+    private static final ThreadLocal<Cache> cache = ThreadLocal.withInitial(Cache::new);
+
+    private interface BufferConsumer {
+        void accept(ByteBuffer buffer) throws IOException;
     }
 
-    private static final ThreadLocal<Cache> cache = ThreadLocal.withInitial(() -> {
-        try {
-            return new Cache(MessageDigest.getInstance("SHA-256"), new byte[8 * 1024]);
-        } catch (NoSuchAlgorithmException e) {
-            throw new AssertionError(e);
+    public static MessageDigest getMessageDigest(DigestAlgorithm algorithm) {
+        MessageDigest[] messageDigests = cache.get().messageDigests;
+        MessageDigest md = messageDigests[algorithm.ordinal()];
+        if (md == null) {
+            md = messageDigests[algorithm.ordinal()] = algorithm.newMessageDigest();
+        } else {
+            md.reset();
         }
-    });
-
-    public static MessageDigest getMessageDigest() {
-        MessageDigest md = cache.get().messageDigest;
-        md.reset();
         return md;
     }
 
-    public static String hash(InputStream input) throws IOException {
-        Cache cache = MessageDigestUtils.cache.get();
-        byte[] buffer = cache.cacheArray;
-        MessageDigest md = cache.messageDigest;
-        md.reset();
+    public static String hash(DigestAlgorithm algorithm, InputStream input) throws IOException {
+        byte[] buffer = cache.get().cacheArray;
+        MessageDigest md = getMessageDigest(algorithm);
 
 
         int read;
@@ -66,9 +73,75 @@ public class MessageDigestUtils {
             }
         } while (read >= 0);
 
-        byte[] digest = md.digest();
-        assert digest != null;
+        return toHexString(md.digest());
+    }
+
+    /**
+     * Computes the hash of the remaining content of the buffer. The position of the buffer is not changed.
+     */
+    public static String hash(DigestAlgorithm algorithm, ByteBuffer buffer) {
+        MessageDigest md = getMessageDigest(algorithm);
+        md.update(buffer.duplicate());
+        return toHexString(md.digest());
+    }
+
+    public static String hash(DigestAlgorithm algorithm, Path file) throws IOException {
+        MessageDigest md = getMessageDigest(algorithm);
+        read(file, md::update);
+        return toHexString(md.digest());
+    }
+
+    /**
+     * Computes the hash of the file, and updates the CRC-32 with its content in the same pass.
+     */
+    public static String hash(DigestAlgorithm algorithm, Path file, CRC32 crc) throws IOException {
+        MessageDigest md = getMessageDigest(algorithm);
+        read(file, buffer -> {
+            md.update(buffer.duplicate());
+            crc.update(buffer);
+        });
+        return toHexString(md.digest());
+    }
+
+    /**
+     * Writes the content of the file to the current entry of the output and returns its hash value,
+     * so that the file is only read once.
+     */
+    public static String copy(DigestAlgorithm algorithm, Path file, RawZipOutputStream output) throws IOException {
+        MessageDigest md = getMessageDigest(algorithm);
+        read(file, buffer -> {
+            md.update(buffer.duplicate());
+            output.write(buffer);
+        });
+        return toHexString(md.digest());
+    }
+
+    /**
+     * Computes the hash of a jimage resource without copying it if it is not compressed.
+     */
+    public static String hash(DigestAlgorithm algorithm, BasicImageReader image, ImageLocation location) {
+        ByteBuffer buffer = image.getResourceBuffer(location);
+        try {
+            return hash(algorithm, buffer);
+        } finally {
+            BasicImageReader.releaseByteBuffer(buffer);
+        }
+    }
 
+    /**
+     * Computes the hash of a jimage resource, and updates the CRC-32 with its content, the resource is only read once.
+     */
+    public static String hash(DigestAlgorithm algorithm, BasicImageReader image, ImageLocation location, CRC32 crc) {
+        ByteBuffer buffer = image.getResourceBuffer(location);
+        try {
+            crc.update(buffer.duplicate());
+            return hash(algorithm, buffer);
+        } finally {
+            BasicImageReader.releaseByteBuffer(buffer);
+        }
+    }
+
+    public static String toHexString(byte[] digest) {
         StringBuilder builder = new StringBuilder(digest.length * 2);
         for (byte b : digest) {
             builder.append(byte2str[b & 0xFF]);
@@ -76,23 +149,45 @@ public class MessageDigestUtils {
         return builder.toString();
     }
 
-    public static String hash(Path file) throws IOException {
-        try (InputStream input = Files.newInputStream(file)) {
-            return hash(input);
+    /**
+     * The inverse of {@link #toHexString(byte[])}, the string must be a valid lowercase hex string.
+     */
+    public static byte[] parseHexString(String hash) {
+        byte[] res = new byte[hash.length() / 2];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (byte) ((Character.digit(hash.charAt(i * 2), 16) << 4) | Character.digit(hash.charAt(i * 2 + 1), 16));
         }
+        return res;
     }
 
-    public static boolean checkSHA256Hash(String hash) {
-        if (hash.length() != 64) {
-            return false;
-        }
-        for (int i = 0; i < hash.length(); i++) {
-            char ch = hash.charAt(i);
-            if ((ch < '0' || ch > '9') && (ch < 'a' || ch > 'f')) {
-                return false;
+    /**
+     * Passes the content of the file to the consumer, either memory-mapped or read into the thread-local direct buffer.
+     */
+    private static void read(Path file, BufferConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                long position = 0;
+                while (position < size) {
+                    long length = Math.min(size - position, Integer.MAX_VALUE);
+                    consumer.accept(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                    position += length;
+                }
+            } else {
+                ByteBuffer buffer = cache.get().directBuffer;
+                buffer.clear();
+                while (channel.read(buffer) >= 0) {
+                    if (!buffer.hasRemaining()) {
+                        buffer.flip();
+                        consumer.accept(buffer);
+                        buffer.clear();
+                    }
+                }
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    consumer.accept(buffer);
+                }
             }
         }
-
-        return true;
     }
 }
@@ -40,12 +40,16 @@ public class ModuleHashesUtils {
 
     public static byte[] filter(Path source) throws IOException {
         try (InputStream input = Files.newInputStream(source)) {
-            return ModuleInfoExtender.newExtender(input)
-                    .hashes(EMPTY_MODULE_HASHES)
-                    .toByteArray();
+            return filter(input);
         }
     }
 
+    public static byte[] filter(InputStream input) throws IOException {
+        return ModuleInfoExtender.newExtender(input)
+                .hashes(EMPTY_MODULE_HASHES)
+                .toByteArray();
+    }
+
     public static byte[] computeHash(Supplier<ModuleReader> supplier, String algorithm) {
         try {
             return (byte[]) computeHash.invoke(null, supplier, algorithm);
@@ -16,13 +16,20 @@ public class ModuleNameFinder extends ClassVisitor {
 
     public static String findModuleName(Path path) throws IOException {
         try (InputStream input = Files.newInputStream(path)) {
-            ClassReader reader = new ClassReader(input);
-            ModuleNameFinder finder = new ModuleNameFinder();
-            reader.accept(finder, ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
-            return finder.getModuleName();
+            return findModuleName(new ClassReader(input));
         }
     }
 
+    public static String findModuleName(byte[] moduleInfo) {
+        return findModuleName(new ClassReader(moduleInfo));
+    }
+
+    private static String findModuleName(ClassReader reader) {
+        ModuleNameFinder finder = new ModuleNameFinder();
+        reader.accept(finder, ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
+        return finder.getModuleName();
+    }
+
     public String getModuleName() {
         return moduleName;
     }
@@ -0,0 +1,166 @@
+package org.glavo.jmod.fallback.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ * The 128-bit x64 variant of MurmurHash3 (with seed 0) as a {@link MessageDigest}.
+ * <p>
+ * It is not a cryptographic hash function, it only guards against accidental changes.
+ * The digest is {@code h1} followed by {@code h2}, both in little-endian byte order, the same as Guava's {@code murmur3_128}.
+ */
+final class Murmur3MessageDigest extends MessageDigest {
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final byte[] buffer = new byte[16];
+    private int bufferLength = 0;
+    private long length = 0;
+    private long h1 = 0;
+    private long h2 = 0;
+
+    Murmur3MessageDigest() {
+        super(DigestAlgorithm.MURMUR3_128.getName());
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 16;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        buffer[bufferLength++] = input;
+        length++;
+        if (bufferLength == 16) {
+            mix((long) LONG_LE.get(buffer, 0), (long) LONG_LE.get(buffer, 8));
+            bufferLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        length += len;
+
+        if (bufferLength > 0) {
+            int n = Math.min(16 - bufferLength, len);
+            System.arraycopy(input, offset, buffer, bufferLength, n);
+            bufferLength += n;
+            offset += n;
+            len -= n;
+
+            if (bufferLength < 16) {
+                return;
+            }
+            mix((long) LONG_LE.get(buffer, 0), (long) LONG_LE.get(buffer, 8));
+            bufferLength = 0;
+        }
+
+        while (len >= 16) {
+            mix((long) LONG_LE.get(input, offset), (long) LONG_LE.get(input, offset + 8));
+            offset += 16;
+            len -= 16;
+        }
+
+        if (len > 0) {
+            System.arraycopy(input, offset, buffer, 0, len);
+            bufferLength = len;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        // Direct and mapped buffers are read in place instead of being copied to a temporary array
+        if (bufferLength == 0 && input.remaining() >= 16) {
+            ByteBuffer le = input.slice().order(ByteOrder.LITTLE_ENDIAN);
+            int blocksLength = le.remaining() & ~15;
+            for (int i = 0; i < blocksLength; i += 16) {
+                mix(le.getLong(i), le.getLong(i + 8));
+            }
+            length += blocksLength;
+            input.position(input.position() + blocksLength);
+        }
+        super.engineUpdate(input);
+    }
+
+    private void mix(long k1, long k2) {
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = bufferLength - 1; i >= 8; i--) {
+            k2 = (k2 << 8) | (buffer[i] & 0xff);
+        }
+        for (int i = Math.min(bufferLength, 8) - 1; i >= 0; i--) {
+            k1 = (k1 << 8) | (buffer[i] & 0xff);
+        }
+        if (bufferLength > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (bufferLength > 0) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] digest = new byte[16];
+        LONG_LE.set(digest, 0, h1);
+        LONG_LE.set(digest, 8, h2);
+        engineReset();
+        return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+        bufferLength = 0;
+        length = 0;
+        h1 = 0;
+        h2 = 0;
+    }
+}
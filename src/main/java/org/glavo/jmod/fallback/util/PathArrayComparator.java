@@ -7,6 +7,42 @@ public enum PathArrayComparator implements Comparator<String[]> {
     INSTANCE;
 
     public static final Comparator<Path> PATH_COMPARATOR = Comparator.comparing(path -> path.toString().split("[/\\\\]"), INSTANCE);
+    public static final Comparator<String> STRING_COMPARATOR = PathArrayComparator::comparePaths;
+
+    private static boolean isSeparator(char ch) {
+        return ch == '/' || ch == '\\';
+    }
+
+    /**
+     * Compares two paths segment by segment like {@link #INSTANCE} compares the split paths, without splitting them.
+     */
+    public static int comparePaths(String x, String y) {
+        final int xLength = x.length();
+        final int yLength = y.length();
+
+        int length = Math.min(xLength, yLength);
+        for (int i = 0; i < length; i++) {
+            char xc = x.charAt(i);
+            char yc = y.charAt(i);
+            if (xc != yc) {
+                boolean xs = isSeparator(xc);
+                boolean ys = isSeparator(yc);
+                if (xs && ys) {
+                    continue;
+                }
+                // The segment that ends first is a prefix of the other
+                if (xs) {
+                    return -1;
+                }
+                if (ys) {
+                    return 1;
+                }
+                return xc - yc;
+            }
+        }
+
+        return xLength - yLength;
+    }
 
     @Override
     public int compare(String[] x, String[] y) {
@@ -0,0 +1,491 @@
+package org.glavo.jmod.fallback.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A minimal read-only ZIP reader that works directly on the central directory.
+ * <p>
+ * Unlike zipfs, it does not build a directory tree, and besides the inflated content,
+ * it gives access to the compressed data and the metadata (CRC-32, sizes, method) of each entry.
+ * Data before the ZIP content (such as the magic number of jmod files) is allowed.
+ * <p>
+ * All reads are positional, so entries can be read from multiple threads at the same time.
+ */
+public final class RawZipFile implements Closeable {
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int ZIP64_LOCHDR = 20;
+    private static final int ZIP64_ENDHDR = 56;
+    private static final int ZIP64_EXTID = 0x0001;
+
+    private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGICCOUNT = 0xFFFF;
+
+    public static final class Entry {
+        private final String name;
+        private final int flag;
+        private final int method;
+        private final long dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+        private final byte[] extra;
+
+        private volatile long dataOffset = -1;
+
+        Entry(String name, int flag, int method, long dosTime, long crc,
+              long compressedSize, long size, long localHeaderOffset, byte[] extra) {
+            this.name = name;
+            this.flag = flag;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.extra = extra;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFlag() {
+            return flag;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the last modification time in MS-DOS format (date in the high 16 bits, time in the low 16 bits)
+         */
+        public long getDosTime() {
+            return dosTime;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the extra field of the central directory header
+         */
+        public byte[] getExtra() {
+            return extra.clone();
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private final Map<String, Entry> entryMap;
+
+    public RawZipFile(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        boolean succeed = false;
+        try {
+            this.entries = Collections.unmodifiableList(readCentralDirectory());
+            HashMap<String, Entry> map = new HashMap<>(entries.size() * 2);
+            for (Entry entry : entries) {
+                map.putIfAbsent(entry.name, entry);
+            }
+            this.entryMap = map;
+            succeed = true;
+        } finally {
+            if (!succeed) {
+                channel.close();
+            }
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return all entries, in the order of the central directory
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    public Entry getEntry(String name) {
+        return entryMap.get(name);
+    }
+
+    /**
+     * @return the compressed data of the entry, as stored in the file
+     */
+    public InputStream getRawInputStream(Entry entry) throws IOException {
+        return new ChannelInputStream(channel, getDataOffset(entry), entry.compressedSize);
+    }
+
+    /**
+     * @return the uncompressed content of the entry, whose size and CRC-32 are checked when the end of the entry is reached
+     */
+    public InputStream getInputStream(Entry entry) throws IOException {
+        InputStream raw = getRawInputStream(entry);
+        switch (entry.method) {
+            case STORED:
+                return new CheckedEntryInputStream(raw, entry);
+            case DEFLATED:
+                return new CheckedEntryInputStream(new EntryInflaterInputStream(raw, entry.size), entry);
+            default:
+                throw new ZipException("Unsupported compression method " + entry.method + " of entry " + entry.name);
+        }
+    }
+
+    public byte[] readAllBytes(Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Entry too large: " + entry.name);
+        }
+        try (InputStream input = getInputStream(entry)) {
+            return input.readAllBytes();
+        }
+    }
+
+    private long getDataOffset(Entry entry) throws IOException {
+        long offset = entry.dataOffset;
+        if (offset < 0) {
+            ByteBuffer header = read(entry.localHeaderOffset, LOCHDR);
+            if (header.getInt(0) != LOCSIG) {
+                throw new ZipException("Invalid local file header of entry " + entry.name);
+            }
+            offset = entry.localHeaderOffset + LOCHDR
+                    + Short.toUnsignedInt(header.getShort(26))
+                    + Short.toUnsignedInt(header.getShort(28));
+            entry.dataOffset = offset;
+        }
+        return offset;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException(path.toString());
+            }
+        }
+        return buffer.flip();
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < ENDHDR) {
+            throw new ZipException("zip file is empty");
+        }
+
+        // The end of central directory record is followed by a comment of at most 65535 bytes
+        int tailLength = (int) Math.min(fileSize, ENDHDR + 0xFFFF);
+        long tailPosition = fileSize - tailLength;
+        ByteBuffer tail = read(tailPosition, tailLength);
+
+        int endOffset = -1;
+        for (int i = tailLength - ENDHDR; i >= 0; i--) {
+            if (tail.getInt(i) == ENDSIG && i + ENDHDR + Short.toUnsignedInt(tail.getShort(i + 20)) == tailLength) {
+                endOffset = i;
+                break;
+            }
+        }
+        if (endOffset < 0) {
+            throw new ZipException("zip END header not found");
+        }
+
+        long endPosition = tailPosition + endOffset;
+        long total = Short.toUnsignedInt(tail.getShort(endOffset + 10));
+        long cenSize = Integer.toUnsignedLong(tail.getInt(endOffset + 12));
+        long cenOffset = Integer.toUnsignedLong(tail.getInt(endOffset + 16));
+
+        if ((total == ZIP64_MAGICCOUNT || cenSize == ZIP64_MAGICVAL || cenOffset == ZIP64_MAGICVAL)
+                && endPosition >= ZIP64_LOCHDR) {
+            ByteBuffer locator = read(endPosition - ZIP64_LOCHDR, ZIP64_LOCHDR);
+            if (locator.getInt(0) == ZIP64_LOCSIG) {
+                // The recorded offset of the ZIP64 end record does not include the prefix, so it is not used
+                long zip64EndPosition = endPosition - ZIP64_LOCHDR - ZIP64_ENDHDR;
+                ByteBuffer zip64End = read(zip64EndPosition, ZIP64_ENDHDR);
+                if (zip64End.getInt(0) != ZIP64_ENDSIG) {
+                    throw new ZipException("Invalid ZIP64 end header");
+                }
+                total = zip64End.getLong(32);
+                cenSize = zip64End.getLong(40);
+                cenOffset = zip64End.getLong(48);
+                endPosition = zip64EndPosition;
+            }
+        }
+
+        // Position of the zip content in the file, non-zero if there is a prefix (for example, the jmod header)
+        long base = endPosition - cenSize - cenOffset;
+        if (base < 0 || cenSize > Integer.MAX_VALUE) {
+            throw new ZipException("Invalid END header (bad central directory offset)");
+        }
+
+        ByteBuffer cen = read(base + cenOffset, (int) cenSize);
+        ArrayList<Entry> res = new ArrayList<>((int) Math.min(total, 0x10000));
+
+        int pos = 0;
+        while (pos + CENHDR <= cenSize) {
+            if (cen.getInt(pos) != CENSIG) {
+                throw new ZipException("Invalid CEN header (bad signature)");
+            }
+            int flag = Short.toUnsignedInt(cen.getShort(pos + 8));
+            int method = Short.toUnsignedInt(cen.getShort(pos + 10));
+            long dosTime = Integer.toUnsignedLong(cen.getInt(pos + 12));
+            long crc = Integer.toUnsignedLong(cen.getInt(pos + 16));
+            long compressedSize = Integer.toUnsignedLong(cen.getInt(pos + 20));
+            long size = Integer.toUnsignedLong(cen.getInt(pos + 24));
+            int nameLength = Short.toUnsignedInt(cen.getShort(pos + 28));
+            int extraLength = Short.toUnsignedInt(cen.getShort(pos + 30));
+            int commentLength = Short.toUnsignedInt(cen.getShort(pos + 32));
+            long localHeaderOffset = Integer.toUnsignedLong(cen.getInt(pos + 42));
+
+            int next = pos + CENHDR + nameLength + extraLength + commentLength;
+            if (next > cenSize) {
+                throw new ZipException("Invalid CEN header (bad header size)");
+            }
+
+            String name = new String(cen.array(), pos + CENHDR, nameLength, StandardCharsets.UTF_8);
+            byte[] extra = Arrays.copyOfRange(cen.array(), pos + CENHDR + nameLength, pos + CENHDR + nameLength + extraLength);
+
+            if (size == ZIP64_MAGICVAL || compressedSize == ZIP64_MAGICVAL || localHeaderOffset == ZIP64_MAGICVAL) {
+                ByteBuffer extraBuffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+                while (extraBuffer.remaining() >= 4) {
+                    int id = Short.toUnsignedInt(extraBuffer.getShort());
+                    int length = Short.toUnsignedInt(extraBuffer.getShort());
+                    if (length > extraBuffer.remaining()) {
+                        break;
+                    }
+                    if (id == ZIP64_EXTID) {
+                        ByteBuffer data = extraBuffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                        data.limit(length);
+                        if (size == ZIP64_MAGICVAL && data.remaining() >= 8) {
+                            size = data.getLong();
+                        }
+                        if (compressedSize == ZIP64_MAGICVAL && data.remaining() >= 8) {
+                            compressedSize = data.getLong();
+                        }
+                        if (localHeaderOffset == ZIP64_MAGICVAL && data.remaining() >= 8) {
+                            localHeaderOffset = data.getLong();
+                        }
+                        break;
+                    }
+                    extraBuffer.position(extraBuffer.position() + length);
+                }
+            }
+
+            res.add(new Entry(name, flag, method, dosTime, crc, compressedSize, size, base + localHeaderOffset, extra));
+            pos = next;
+        }
+
+        if (res.size() != total) {
+            throw new ZipException("Invalid CEN header (bad entry count)");
+        }
+
+        return res;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        ChannelInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long k = Math.max(0, Math.min(n, remaining));
+            position += k;
+            remaining -= k;
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+
+    private static final class CheckedEntryInputStream extends FilterInputStream {
+        private final Entry entry;
+        private final CRC32 crc = new CRC32();
+        private long count = 0;
+
+        CheckedEntryInputStream(InputStream input, Entry entry) {
+            super(input);
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                crc.update(b, off, n);
+                count += n;
+            } else if (n < 0) {
+                if (count != entry.size) {
+                    throw new ZipException(String.format("invalid entry size (expected %d but got %d bytes) of entry %s",
+                            entry.size, count, entry.name));
+                }
+                if (crc.getValue() != entry.crc) {
+                    throw new ZipException(String.format("invalid entry CRC (expected 0x%x but got 0x%x) of entry %s",
+                            entry.crc, crc.getValue(), entry.name));
+                }
+            }
+            return n;
+        }
+
+        /**
+         * The skipped bytes are read, so that the CRC-32 of the whole entry is still checked.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.max(1, Math.min(n, 8192))];
+            long skipped = 0;
+            while (skipped < n) {
+                int k = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (k < 0) {
+                    break;
+                }
+                skipped += k;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static final class EntryInflaterInputStream extends InflaterInputStream {
+        private long remaining;
+        private boolean eof = false;
+        private boolean closed = false;
+
+        EntryInflaterInputStream(InputStream input, long size) {
+            super(input, new Inflater(true), (int) Math.max(64, Math.min(size, 8192)));
+            this.remaining = size;
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                // The inflater may need an extra dummy byte in the "nowrap" mode
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return closed ? 0 : (int) Math.min(Integer.MAX_VALUE, Math.max(0, remaining));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                inf.end();
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package org.glavo.jmod.fallback.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * A ZIP writer that, in addition to compressing new entries like {@link java.util.zip.ZipOutputStream},
+ * can copy entries of a {@link RawZipFile} as they are stored, without inflating and deflating them again.
+ * <p>
+ * Like {@code ZipOutputStream}, offsets are relative to the position of the underlying stream when this stream was created,
+ * so that data such as the magic number of jmod files can be written before the ZIP content.
+ */
+public final class RawZipOutputStream extends OutputStream {
+    private static final int LOCSIG = 0x04034b50;
+    private static final int EXTSIG = 0x08074b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+
+    private static final int ZIP64_EXTID = 0x0001;
+    private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGICCOUNT = 0xFFFF;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+
+    private static final class EntryInfo {
+        final byte[] name;
+        final int flag;
+        final int method;
+        final long dosTime;
+        final byte[] extra;
+        final long offset;
+
+        long crc;
+        long compressedSize;
+        long size;
+
+        EntryInfo(byte[] name, int flag, int method, long dosTime, byte[] extra, long offset) {
+            this.name = name;
+            this.flag = flag;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.extra = extra;
+            this.offset = offset;
+        }
+    }
+
+    private final OutputStream out;
+    private final List<EntryInfo> entries = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] deflateBuffer = new byte[8192];
+    private final byte[] writeBuffer = new byte[8];
+
+    private long written = 0;
+    private EntryInfo current;
+    private boolean closed = false;
+
+    public RawZipOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Begins a new entry, whose content is written through this stream and compressed with the DEFLATE method.
+     * The time is given explicitly instead of using the current time, so that the output is reproducible.
+     *
+     * @param dosTime the last modification time in MS-DOS format, see {@link RawZipFile.Entry#getDosTime()}
+     */
+    public void putNextEntry(String name, long dosTime) throws IOException {
+        ensureOpen();
+        if (current != null) {
+            closeEntry();
+        }
+
+        current = new EntryInfo(name.getBytes(StandardCharsets.UTF_8), FLAG_DATA_DESCRIPTOR | FLAG_UTF8,
+                RawZipFile.DEFLATED, dosTime, new byte[0], written);
+        crc.reset();
+        deflater.reset();
+        writeLocalHeader(current);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        writeBuffer[0] = (byte) b;
+        write(writeBuffer, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (current == null) {
+            throw new ZipException("no current ZIP entry");
+        }
+        if (len == 0) {
+            return;
+        }
+
+        crc.update(b, off, len);
+        current.size += len;
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    /**
+     * Writes the remaining content of the buffer to the current entry, the position of the buffer is moved to its limit.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        ensureOpen();
+        if (current == null) {
+            throw new ZipException("no current ZIP entry");
+        }
+        int len = buffer.remaining();
+        if (len == 0) {
+            return;
+        }
+
+        crc.update(buffer.duplicate());
+        current.size += len;
+        deflater.setInput(buffer);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    private void deflate() throws IOException {
+        int n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+        if (n > 0) {
+            writeBytes(deflateBuffer, 0, n);
+        }
+    }
+
+    public void closeEntry() throws IOException {
+        ensureOpen();
+        EntryInfo entry = current;
+        if (entry == null) {
+            return;
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+
+        entry.crc = crc.getValue();
+        entry.compressedSize = deflater.getBytesWritten();
+        if (entry.size >= ZIP64_MAGICVAL || entry.compressedSize >= ZIP64_MAGICVAL) {
+            throw new ZipException("Entry too large: " + new String(entry.name, StandardCharsets.UTF_8));
+        }
+
+        writeInt(EXTSIG);
+        writeInt(entry.crc);
+        writeInt(entry.compressedSize);
+        writeInt(entry.size);
+
+        entries.add(entry);
+        current = null;
+    }
+
+    /**
+     * Writes a complete entry whose content is in memory, compressed with the DEFLATE method.
+     */
+    public void writeEntry(String name, byte[] content, long dosTime) throws IOException {
+        putNextEntry(name, dosTime);
+        write(content);
+        closeEntry();
+    }
+
+    /**
+     * Copies the entry of {@code file} to this stream as it is stored, preserving its method, CRC-32, sizes and time.
+     */
+    public void copyRawEntry(RawZipFile file, RawZipFile.Entry source) throws IOException {
+        ensureOpen();
+        if (current != null) {
+            closeEntry();
+        }
+        if (source.getSize() >= ZIP64_MAGICVAL || source.getCompressedSize() >= ZIP64_MAGICVAL) {
+            throw new ZipException("Entry too large: " + source.getName());
+        }
+
+        // The data descriptor of the source is not copied, the CRC-32 and the sizes are written in the local header instead
+        EntryInfo entry = new EntryInfo(source.getName().getBytes(StandardCharsets.UTF_8),
+                (source.getFlag() & ~FLAG_DATA_DESCRIPTOR) | FLAG_UTF8,
+                source.getMethod(), source.getDosTime(), removeZip64Extra(source.getExtra()), written);
+        entry.crc = source.getCrc();
+        entry.compressedSize = source.getCompressedSize();
+        entry.size = source.getSize();
+
+        writeLocalHeader(entry);
+
+        long copied = 0;
+        try (InputStream input = file.getRawInputStream(source)) {
+            byte[] buffer = deflateBuffer;
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                writeBytes(buffer, 0, n);
+                copied += n;
+            }
+        }
+        if (copied != entry.compressedSize) {
+            throw new ZipException("Unexpected end of entry " + source.getName());
+        }
+
+        entries.add(entry);
+    }
+
+    private void writeLocalHeader(EntryInfo entry) throws IOException {
+        boolean hasDataDescriptor = (entry.flag & FLAG_DATA_DESCRIPTOR) != 0;
+
+        writeInt(LOCSIG);
+        writeShort(versionNeeded(entry));
+        writeShort(entry.flag);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(hasDataDescriptor ? 0 : entry.crc);
+        writeInt(hasDataDescriptor ? 0 : entry.compressedSize);
+        writeInt(hasDataDescriptor ? 0 : entry.size);
+        writeShort(entry.name.length);
+        writeShort(entry.extra.length);
+        writeBytes(entry.name, 0, entry.name.length);
+        writeBytes(entry.extra, 0, entry.extra.length);
+    }
+
+    private static int versionNeeded(EntryInfo entry) {
+        return entry.method == RawZipFile.DEFLATED || (entry.flag & FLAG_DATA_DESCRIPTOR) != 0 ? 20 : 10;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the central directory and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            if (current != null) {
+                closeEntry();
+            }
+
+            long cenOffset = written;
+            for (EntryInfo entry : entries) {
+                boolean zip64Offset = entry.offset >= ZIP64_MAGICVAL;
+                byte[] extra = entry.extra;
+                if (zip64Offset) {
+                    ByteBuffer zip64Extra = ByteBuffer.allocate(12 + extra.length).order(ByteOrder.LITTLE_ENDIAN);
+                    zip64Extra.putShort((short) ZIP64_EXTID).putShort((short) 8).putLong(entry.offset).put(extra);
+                    extra = zip64Extra.array();
+                }
+
+                writeInt(CENSIG);
+                writeShort(zip64Offset ? 45 : 20);
+                writeShort(zip64Offset ? 45 : versionNeeded(entry));
+                writeShort(entry.flag);
+                writeShort(entry.method);
+                writeInt(entry.dosTime);
+                writeInt(entry.crc);
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+                writeShort(entry.name.length);
+                writeShort(extra.length);
+                writeShort(0); // comment length
+                writeShort(0); // disk number start
+                writeShort(0); // internal file attributes
+                writeInt(0);   // external file attributes
+                writeInt(zip64Offset ? ZIP64_MAGICVAL : entry.offset);
+                writeBytes(entry.name, 0, entry.name.length);
+                writeBytes(extra, 0, extra.length);
+            }
+            long cenSize = written - cenOffset;
+
+            int count = entries.size();
+            if (count >= ZIP64_MAGICCOUNT || cenOffset >= ZIP64_MAGICVAL || cenSize >= ZIP64_MAGICVAL) {
+                long zip64EndOffset = written;
+
+                writeInt(ZIP64_ENDSIG);
+                writeLong(44);     // size of the remaining record
+                writeShort(45);    // version made by
+                writeShort(45);    // version needed to extract
+                writeInt(0);       // number of this disk
+                writeInt(0);       // number of the disk with the start of the central directory
+                writeLong(count);
+                writeLong(count);
+                writeLong(cenSize);
+                writeLong(cenOffset);
+
+                writeInt(ZIP64_LOCSIG);
+                writeInt(0);
+                writeLong(zip64EndOffset);
+                writeInt(1);
+            }
+
+            writeInt(ENDSIG);
+            writeShort(0);
+            writeShort(0);
+            writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+            writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+            writeInt(Math.min(cenSize, ZIP64_MAGICVAL));
+            writeInt(Math.min(cenOffset, ZIP64_MAGICVAL));
+            writeShort(0); // comment length
+        } finally {
+            closed = true;
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private static byte[] removeZip64Extra(byte[] extra) {
+        if (extra.length == 0) {
+            return extra;
+        }
+
+        ByteArrayOutputStream res = new ByteArrayOutputStream(extra.length);
+        int pos = 0;
+        while (pos + 4 <= extra.length) {
+            int id = (extra[pos] & 0xff) | ((extra[pos + 1] & 0xff) << 8);
+            int length = (extra[pos + 2] & 0xff) | ((extra[pos + 3] & 0xff) << 8);
+            if (pos + 4 + length > extra.length) {
+                break;
+            }
+            if (id != ZIP64_EXTID) {
+                res.write(extra, pos, 4 + length);
+            }
+            pos += 4 + length;
+        }
+        return res.toByteArray();
+    }
+
+    /**
+     * @return the time in MS-DOS format, in the default time zone like {@link java.util.zip.ZipEntry#setTime(long)}
+     */
+    public static long javaToDosTime(long time) {
+        LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        int year = dateTime.getYear();
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | dateTime.getMonthValue() << 21
+                | dateTime.getDayOfMonth() << 16
+                | dateTime.getHour() << 11
+                | dateTime.getMinute() << 5
+                | dateTime.getSecond() >> 1;
+    }
+
+    private void writeShort(int v) throws IOException {
+        writeBuffer[0] = (byte) v;
+        writeBuffer[1] = (byte) (v >>> 8);
+        writeBytes(writeBuffer, 0, 2);
+    }
+
+    private void writeInt(long v) throws IOException {
+        writeBuffer[0] = (byte) v;
+        writeBuffer[1] = (byte) (v >>> 8);
+        writeBuffer[2] = (byte) (v >>> 16);
+        writeBuffer[3] = (byte) (v >>> 24);
+        writeBytes(writeBuffer, 0, 4);
+    }
+
+    private void writeLong(long v) throws IOException {
+        writeInt(v);
+        writeInt(v >>> 32);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+}
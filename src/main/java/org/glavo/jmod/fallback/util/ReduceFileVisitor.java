@@ -1,40 +1,89 @@
 package org.glavo.jmod.fallback.util;
 
 import jdk.internal.jimage.ImageLocation;
-import jdk.internal.jimage.ImageReader;
 import org.glavo.jmod.fallback.Main;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
-public class ReduceFileVisitor implements FileVisitor<Path> {
+/**
+ * Finds the files in a jmod that are also present in the runtime path.
+ * <p>
+ * It can walk a jmod opened as a zip file system, or be fed the entries of a jmod one by one
+ * with {@link #visitEntry(String, long, HashTask)}.
+ * <p>
+ * When the CRC-32 of the entry is known (it is stored in the central directory of the jmod),
+ * and the CRC-32 of the runtime file is in the {@link DigestCache}, they are compared first,
+ * and the hash values are only computed if they are equal. The CRC-32 of the runtime file is never computed on its own:
+ * most candidates are identical, so reading the file once for the CRC-32 and once for the hash value
+ * would double the I/O. The cache computes it in the same pass as the hash value instead.
+ * <p>
+ * The hash values of the runtime files are looked up in the {@link DigestCache} before being computed.
+ * <p>
+ * If a hash executor is given, the candidates are compared concurrently by the executor.
+ * {@link #finish()} must be called after all entries have been visited to collect the results.
+ * Since the results are kept in a sorted map, the recorded hashes do not depend on the order in which they complete.
+ * The tasks read the entries of the jmod, so the visitor must be closed before the jmod,
+ * even if the entries are not all visited.
+ */
+public class ReduceFileVisitor implements FileVisitor<Path>, AutoCloseable {
 
     private final String moduleName;
     private final Path runtimePath;
-    private final ImageReader image;
-    public final List<PathMatcher> excludePatterns = new ArrayList<>();
-    public final List<PathMatcher> withoutVerifyPatterns = new ArrayList<>();
+    private final ImageReaderPool images;
+    private final DigestAlgorithm digestAlgorithm;
+    private final DigestCache digestCache;
+    private final ExecutorService hashExecutor;
 
-    private final SortedMap<Path, String> recordedHash = new TreeMap<>(PathArrayComparator.PATH_COMPARATOR);
+    /**
+     * Patterns matched against the absolute path of the entry in the jmod (for example, {@code /classes/java/lang/Object.class}).
+     */
+    public final List<Predicate<String>> excludePatterns = new ArrayList<>();
+    public final List<Predicate<String>> withoutVerifyPatterns = new ArrayList<>();
 
-    public ReduceFileVisitor(String moduleName, Path runtimePath, ImageReader image) throws IOException {
+    private final SortedMap<String, String> recordedHash = new TreeMap<>(PathArrayComparator.STRING_COMPARATOR);
+    private final List<PendingHash> pendingHashes = new ArrayList<>();
+
+    private final Object taskLock = new Object();
+    private int runningTasks = 0; // guarded by taskLock
+    private boolean closed = false; // guarded by taskLock
+
+    private final AtomicInteger computedDigests = new AtomicInteger();
+    private final AtomicInteger skippedDigests = new AtomicInteger();
+
+    public ReduceFileVisitor(String moduleName, Path runtimePath, ImageReaderPool images) throws IOException {
+        this(moduleName, runtimePath, images, DigestAlgorithm.SHA_256, DigestCache.disabled(), null);
+    }
+
+    public ReduceFileVisitor(String moduleName, Path runtimePath, ImageReaderPool images,
+                             DigestAlgorithm digestAlgorithm, DigestCache digestCache, ExecutorService hashExecutor) throws IOException {
         this.moduleName = moduleName;
         this.runtimePath = runtimePath;
-        this.image = image;
+        this.images = images;
+        this.digestAlgorithm = digestAlgorithm;
+        this.digestCache = digestCache;
+        this.hashExecutor = hashExecutor;
+    }
+
+    private static boolean isReducibleSection(String sectionName) {
+        return sectionName.startsWith(JmodUtils.SECTION_BIN)
+                || sectionName.startsWith(JmodUtils.SECTION_LIB)
+                || sectionName.startsWith(JmodUtils.SECTION_CLASSES)
+                || sectionName.startsWith(JmodUtils.SECTION_INCLUDE);
     }
 
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
         String dirName = dir.toString();
-        if (dirName.equals("/")
-                || dirName.startsWith(JmodUtils.SECTION_BIN, 1)
-                || dirName.startsWith(JmodUtils.SECTION_LIB, 1)
-                || dirName.startsWith(JmodUtils.SECTION_CLASSES, 1)
-                || dirName.startsWith(JmodUtils.SECTION_INCLUDE, 1)
-        ) {
+        if (dirName.equals("/") || isReducibleSection(dirName.substring(1))) {
             return FileVisitResult.CONTINUE;
         } else {
             return FileVisitResult.SKIP_SUBTREE;
@@ -43,73 +92,202 @@ public class ReduceFileVisitor implements FileVisitor<Path> {
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        if ("module-info.class".equals(file.getFileName().toString())) {
-            return FileVisitResult.CONTINUE;
+        if (Files.isRegularFile(file)) {
+            visitEntry(file.toString().substring(1), Files.size(file), () -> MessageDigestUtils.hash(digestAlgorithm, file));
         }
+        return FileVisitResult.CONTINUE;
+    }
 
-        for (PathMatcher excludePattern : excludePatterns) {
-            if (excludePattern.matches(file)) {
-                Main.printDebugMessage("Exclude: " + file);
-                return FileVisitResult.CONTINUE;
+    public boolean visitEntry(String filePath, long size, HashTask entryHashTask) throws IOException {
+        return visitEntry(filePath, size, -1, entryHashTask);
+    }
+
+    /**
+     * Checks whether the entry of the jmod may be replaced by the content of the runtime path.
+     *
+     * @param filePath the path of the entry in the jmod, without the leading {@code /}
+     * @param size the uncompressed size of the entry
+     * @param crc the CRC-32 of the entry content, or {@code -1} if it is unknown
+     * @param entryHashTask computes the hash of the entry content
+     * @return {@code true} if the entry is a candidate, in which case it will be present in
+     * {@link #getRecordedHash()} after {@link #finish()} if it has been reduced
+     */
+    public boolean visitEntry(String filePath, long size, long crc, HashTask entryHashTask) throws IOException {
+        if ("module-info.class".equals(filePath) || filePath.endsWith("/module-info.class")) {
+            return false;
+        }
+
+        int idx = filePath.indexOf('/');
+        if (idx >= 0 && !isReducibleSection(filePath.substring(0, idx))) {
+            return false;
+        }
+
+        String absolutePath = "/" + filePath;
+        for (Predicate<String> excludePattern : excludePatterns) {
+            if (excludePattern.test(absolutePath)) {
+                Main.printDebugMessage("Exclude: " + absolutePath);
+                return false;
             }
         }
 
-        if (Files.isRegularFile(file)) {
-            String filePath = file.toString().substring(1);
+        boolean verify = true;
 
-            boolean verify = true;
+        for (Predicate<String> pattern : withoutVerifyPatterns) {
+            if (pattern.test(absolutePath)) {
+                Main.printDebugMessage("No Verify: " + filePath);
+                verify = false;
+            }
+        }
 
-            for (PathMatcher pattern : withoutVerifyPatterns) {
-                if (pattern.matches(file)) {
-                    Main.printDebugMessage("No Verify: " + filePath);
-                    verify = false;
+        if (filePath.startsWith(JmodUtils.SECTION_CLASSES)) {
+            ImageLocation location = images.get().findLocation(moduleName, filePath.substring(JmodUtils.SECTION_CLASSES.length() + 1));
+            if (location != null && (!verify || location.getUncompressedSize() == size)) {
+                if (verify) {
+                    compareHash(filePath, crc, entryHashTask,
+                            () -> digestCache.getCachedCrc32(location),
+                            () -> digestCache.hash(digestAlgorithm, images.get(), location));
+                } else {
+                    recordedHash.put(filePath, "");
                 }
+                return true;
+            } else {
+                Main.printDebugMessage(() -> (location != null ? "Mismatch: " : "Not found: ") + filePath);
             }
+        } else {
+            Path runtimeFilePath = runtimePath.resolve(JmodUtils.mapToRuntimePath(filePath));
 
-            if (filePath.startsWith(JmodUtils.SECTION_CLASSES)) {
-                ImageLocation location = image.findLocation(moduleName, filePath.substring(JmodUtils.SECTION_CLASSES.length() + 1));
-                if (location != null && (!verify || location.getUncompressedSize() == Files.size(file))) {
-                    if (verify) {
-                        String expectedHash = MessageDigestUtils.hash(file);
-                        String actualHash;
-                        try (InputStream input = image.getResourceStream(location)) {
-                            actualHash = MessageDigestUtils.hash(input);
-                        }
-
-                        if (expectedHash.equals(actualHash)) {
-                            recordedHash.put(file, expectedHash);
-                        } else {
-                            Main.printDebugMessage("Mismatch: " + filePath);
-                        }
-                    } else {
-                        recordedHash.put(file, "");
-                    }
+            if (Files.isRegularFile(runtimeFilePath) && (!verify || Files.size(runtimeFilePath) == size)) {
+                if (verify) {
+                    compareHash(filePath, crc, entryHashTask,
+                            () -> digestCache.getCachedCrc32(runtimeFilePath),
+                            () -> digestCache.hash(digestAlgorithm, runtimeFilePath));
                 } else {
-                    Main.printDebugMessage(() -> (location != null ? "Mismatch: " : "Not found: ") + filePath);
+                    recordedHash.put(filePath, "");
                 }
+                return true;
             } else {
-                Path runtimeFilePath = runtimePath.resolve(JmodUtils.mapToRuntimePath(filePath));
-
-                if (Files.isRegularFile(runtimeFilePath) && (!verify || Files.size(runtimeFilePath) == Files.size(file))) {
-                    if (verify) {
-                        String expectedHash = MessageDigestUtils.hash(file);
-                        String actualHash = MessageDigestUtils.hash(runtimeFilePath);
-
-                        if (expectedHash.equals(actualHash)) {
-                            recordedHash.put(file, expectedHash);
-                        } else {
-                            Main.printDebugMessage("Mismatch: " + filePath);
-                        }
-                    } else {
-                        recordedHash.put(file, "");
+                Main.printDebugMessage(() -> (Files.isRegularFile(runtimeFilePath) ? "Mismatch: " : "Not found: ") + filePath);
+            }
+        }
+
+        return false;
+    }
+
+    private void compareHash(String filePath, long expectedCrc, HashTask expectedHashTask,
+                             ChecksumTask cachedCrcTask, HashTask actualHashTask) throws IOException {
+        if (hashExecutor == null) {
+            recordHash(filePath, compare(filePath, expectedCrc, expectedHashTask, cachedCrcTask, actualHashTask));
+        } else {
+            pendingHashes.add(new PendingHash(filePath, hashExecutor.submit(() -> {
+                synchronized (taskLock) {
+                    if (closed) {
+                        return null;
                     }
-                } else {
-                    Main.printDebugMessage(() -> (Files.isRegularFile(runtimeFilePath) ? "Mismatch: " : "Not found: ") + filePath);
+                    runningTasks++;
+                }
+                try {
+                    return compare(filePath, expectedCrc, expectedHashTask, cachedCrcTask, actualHashTask);
+                } finally {
+                    synchronized (taskLock) {
+                        runningTasks--;
+                        taskLock.notifyAll();
+                    }
+                }
+            })));
+        }
+    }
+
+    /**
+     * @param cachedCrcTask returns the cached CRC-32 of the runtime file, or {@code -1} if it is not cached
+     * @return the hash value if the contents are the same, otherwise {@code null}
+     */
+    private String compare(String filePath, long expectedCrc, HashTask expectedHashTask,
+                           ChecksumTask cachedCrcTask, HashTask actualHashTask) throws IOException {
+        long actualCrc = expectedCrc >= 0 ? cachedCrcTask.checksum() : -1;
+        if (actualCrc >= 0 && actualCrc != expectedCrc) {
+            skippedDigests.addAndGet(2);
+            Main.printDebugMessage("Mismatch (CRC-32): " + filePath);
+            return null;
+        }
+
+        computedDigests.addAndGet(2);
+        String expectedHash = expectedHashTask.hash();
+        if (expectedHash.equals(actualHashTask.hash())) {
+            return expectedHash;
+        } else {
+            Main.printDebugMessage("Mismatch: " + filePath);
+            return null;
+        }
+    }
+
+    private void recordHash(String filePath, String hash) {
+        if (hash != null) {
+            recordedHash.put(filePath, hash);
+        }
+    }
+
+    /**
+     * Waits for all pending hash tasks and records their results.
+     */
+    public void finish() throws IOException {
+        try {
+            for (PendingHash pending : pendingHashes) {
+                recordHash(pending.filePath, getHash(pending.hash));
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Cancels the hash tasks that have not started, and waits for the running ones,
+     * so that no task reads the jmod after it is closed.
+     */
+    @Override
+    public void close() {
+        synchronized (taskLock) {
+            closed = true;
+        }
+        for (PendingHash pending : pendingHashes) {
+            pending.hash.cancel(false);
+        }
+        pendingHashes.clear();
+
+        boolean interrupted = false;
+        synchronized (taskLock) {
+            while (runningTasks > 0) {
+                try {
+                    taskLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        return FileVisitResult.CONTINUE;
+    private static String getHash(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
     }
 
     @Override
@@ -122,7 +300,45 @@ public class ReduceFileVisitor implements FileVisitor<Path> {
         return FileVisitResult.CONTINUE;
     }
 
-    public SortedMap<Path, String> getRecordedHash() {
+    /**
+     * @return the hash values of the reduced entries, keyed by their paths in the jmod (without the leading {@code /}).
+     * The hash value is empty if the entry is not verified.
+     */
+    public SortedMap<String, String> getRecordedHash() {
         return recordedHash;
     }
+
+    /**
+     * @return the number of hash values computed to compare the candidates
+     */
+    public int getComputedDigests() {
+        return computedDigests.get();
+    }
+
+    /**
+     * @return the number of hash values that did not need to be computed because the CRC-32 did not match
+     */
+    public int getSkippedDigests() {
+        return skippedDigests.get();
+    }
+
+    @FunctionalInterface
+    public interface HashTask {
+        String hash() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ChecksumTask {
+        long checksum() throws IOException;
+    }
+
+    private static final class PendingHash {
+        final String filePath;
+        final Future<String> hash;
+
+        PendingHash(String filePath, Future<String> hash) {
+            this.filePath = filePath;
+            this.hash = hash;
+        }
+    }
 }
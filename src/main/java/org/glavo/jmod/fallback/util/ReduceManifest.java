@@ -0,0 +1,260 @@
+package org.glavo.jmod.fallback.util;
+
+import org.glavo.jmod.fallback.Main;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * The manifest of an incremental reduction, placed in the output directory.
+ * <p>
+ * For each Jmod file that has been reduced into the output directory, the manifest records the size,
+ * last modified time and fingerprint of the source file, and the size and last modified time of the target file.
+ * The fingerprint is the SHA-256 hash of the name, CRC-32 and size of each entry in the central directory,
+ * so it is computed without reading the content of the entries.
+ * <p>
+ * A Jmod file is unchanged if its target file has not changed since it was written, and the source file has the same size
+ * and last modified time, or the same fingerprint if only its last modified time has changed.
+ * The whole manifest is discarded when the identity of the reduction changes:
+ * the real path of the runtime, the relative path, size and last modified time of each file in it,
+ * including the jimage file and the files outside it such as {@code bin/}, {@code lib/*.so} and {@code conf/},
+ * and the options that affect the reduced Jmod files.
+ * The identity is the SHA-256 hash of these values, each of them is prefixed with its length.
+ */
+public final class ReduceManifest {
+    public static final String FILE_NAME = ".fallback-jmod.manifest";
+
+    private static final int MAGIC = 0x464a524d; // FJRM
+    private static final int VERSION = 2;
+
+    private static final class Entry {
+        final long sourceSize;
+        final long sourceLastModifiedTime;
+        final byte[] fingerprint;
+        final long targetSize;
+        final long targetLastModifiedTime;
+
+        Entry(long sourceSize, long sourceLastModifiedTime, byte[] fingerprint, long targetSize, long targetLastModifiedTime) {
+            this.sourceSize = sourceSize;
+            this.sourceLastModifiedTime = sourceLastModifiedTime;
+            this.fingerprint = fingerprint;
+            this.targetSize = targetSize;
+            this.targetLastModifiedTime = targetLastModifiedTime;
+        }
+    }
+
+    private final Path manifestFile;
+    private final String identity;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private ReduceManifest(Path manifestFile, String identity) {
+        this.manifestFile = manifestFile;
+        this.identity = identity;
+    }
+
+    /**
+     * Opens the manifest in the output directory.
+     *
+     * @param options the options that affect the reduced Jmod files, the files of the runtime are added to them
+     */
+    public static ReduceManifest open(Path outputDir, Path runtimePath, List<String> options) throws IOException {
+        Path realRuntimePath = runtimePath.toRealPath();
+
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(realRuntimePath)) {
+            stream.filter(Files::isRegularFile).forEach(files::add);
+        }
+        files.sort(null);
+
+        MessageDigest md = MessageDigestUtils.getMessageDigest(DigestAlgorithm.SHA_256);
+        update(md, realRuntimePath.toString());
+        update(md, String.valueOf(files.size()));
+        for (Path file : files) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            update(md, realRuntimePath.relativize(file).toString());
+            update(md, String.valueOf(attributes.size()));
+            update(md, String.valueOf(attributes.lastModifiedTime().toMillis()));
+        }
+        update(md, String.valueOf(options.size()));
+        for (String option : options) {
+            update(md, option);
+        }
+
+        ReduceManifest manifest = new ReduceManifest(outputDir.resolve(FILE_NAME), MessageDigestUtils.toHexString(md.digest()));
+        manifest.load();
+        return manifest;
+    }
+
+    private static void update(MessageDigest md, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        md.update(ByteBuffer.allocate(Integer.BYTES).putInt(0, bytes.length));
+        md.update(bytes);
+    }
+
+    private static String key(Path source) {
+        return source.toAbsolutePath().normalize().toString();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private void load() throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(manifestFile);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !readString(buffer).equals(identity)) {
+                Main.printDebugMessage(() -> "Discard reduce manifest: " + manifestFile);
+                return;
+            }
+
+            int count = buffer.getInt();
+            Map<String, Entry> res = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String source = readString(buffer);
+                long sourceSize = buffer.getLong();
+                long sourceLastModifiedTime = buffer.getLong();
+                byte[] fingerprint = new byte[buffer.getInt()];
+                buffer.get(fingerprint);
+                long targetSize = buffer.getLong();
+                long targetLastModifiedTime = buffer.getLong();
+                res.put(source, new Entry(sourceSize, sourceLastModifiedTime, fingerprint, targetSize, targetLastModifiedTime));
+            }
+            entries.putAll(res);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            Main.printDebugMessage(() -> "Corrupted reduce manifest: " + manifestFile);
+        }
+    }
+
+    private static byte[] fingerprint(Path source) throws IOException {
+        MessageDigest md = MessageDigestUtils.getMessageDigest(DigestAlgorithm.SHA_256);
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * 2);
+        try (RawZipFile jmod = JmodUtils.openRaw(source)) {
+            for (RawZipFile.Entry entry : jmod.entries()) {
+                md.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+                buffer.clear();
+                buffer.putLong(entry.getCrc()).putLong(entry.getSize()).flip();
+                md.update(buffer);
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * @return whether the Jmod file has been reduced into the target file, and neither of them has changed since then
+     */
+    public boolean isUnchanged(Path source, Path target) throws IOException {
+        String key = key(source);
+        Entry entry = entries.get(key);
+        if (entry == null || Files.notExists(target)) {
+            return false;
+        }
+
+        BasicFileAttributes targetAttributes = Files.readAttributes(target, BasicFileAttributes.class);
+        if (targetAttributes.size() != entry.targetSize
+                || targetAttributes.lastModifiedTime().toMillis() != entry.targetLastModifiedTime) {
+            return false;
+        }
+
+        BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+        long sourceSize = sourceAttributes.size();
+        long sourceLastModifiedTime = sourceAttributes.lastModifiedTime().toMillis();
+        if (sourceSize != entry.sourceSize) {
+            return false;
+        }
+        if (sourceLastModifiedTime == entry.sourceLastModifiedTime) {
+            return true;
+        }
+
+        // The file may have been copied or extracted again without being changed
+        if (!MessageDigest.isEqual(entry.fingerprint, fingerprint(source))) {
+            return false;
+        }
+        entries.put(key, new Entry(sourceSize, sourceLastModifiedTime, entry.fingerprint, entry.targetSize, entry.targetLastModifiedTime));
+        return true;
+    }
+
+    /**
+     * Records that the Jmod file has been reduced into the target file.
+     */
+    public void record(Path source, Path target) throws IOException {
+        if (Files.notExists(target) || Files.isSameFile(source, target)) {
+            entries.remove(key(source));
+            return;
+        }
+
+        BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+        BasicFileAttributes targetAttributes = Files.readAttributes(target, BasicFileAttributes.class);
+        entries.put(key(source), new Entry(
+                sourceAttributes.size(), sourceAttributes.lastModifiedTime().toMillis(), fingerprint(source),
+                targetAttributes.size(), targetAttributes.lastModifiedTime().toMillis()));
+    }
+
+    /**
+     * Removes the record of the Jmod file, so it is reduced again in the next run.
+     */
+    public void remove(Path source) {
+        entries.remove(key(source));
+    }
+
+    /**
+     * Writes the manifest to the output directory.
+     */
+    public void save() throws IOException {
+        Path tempFile = Files.createTempFile(manifestFile.getParent(), manifestFile.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                writeString(output, identity);
+
+                Map<String, Entry> current = new HashMap<>(entries);
+                output.writeInt(current.size());
+                for (Map.Entry<String, Entry> e : current.entrySet()) {
+                    Entry entry = e.getValue();
+                    writeString(output, e.getKey());
+                    output.writeLong(entry.sourceSize);
+                    output.writeLong(entry.sourceLastModifiedTime);
+                    output.writeInt(entry.fingerprint.length);
+                    output.write(entry.fingerprint);
+                    output.writeLong(entry.targetSize);
+                    output.writeLong(entry.targetLastModifiedTime);
+                }
+            }
+
+            try {
+                Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}